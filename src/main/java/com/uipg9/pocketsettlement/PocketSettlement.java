@@ -1,13 +1,17 @@
 package com.uipg9.pocketsettlement;
 
 import com.uipg9.pocketsettlement.commands.SettlementCommand;
-import com.uipg9.pocketsettlement.data.SettlementState;
+import com.uipg9.pocketsettlement.data.BuildingDefinitions;
+import com.uipg9.pocketsettlement.data.SettlementRegistry;
 import com.uipg9.pocketsettlement.network.SettlementNetworking;
+import com.uipg9.pocketsettlement.persistence.SettlementPersistence;
 import com.uipg9.pocketsettlement.tick.SettlementTickManager;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
+import net.minecraft.network.chat.Component;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +46,9 @@ public class PocketSettlement implements ModInitializer {
         LOGGER.info("   Author: Uipg9");
         LOGGER.info("═══════════════════════════════════════════════════════");
         
+        // Load server tuning values
+        SettlementConfig.load();
+        
         // Register packet types (must be done before server/client receivers)
         SettlementNetworking.registerPackets();
         
@@ -61,19 +68,36 @@ public class PocketSettlement implements ModInitializer {
             }
         });
         
-        // Initialize settlement data when server starts
-        ServerLifecycleEvents.SERVER_STARTED.register(server -> {
-            SettlementState.getOrCreate(server.overworld());
-            LOGGER.info("[Pocket Settlement] Settlement state initialized");
+        // Flush journals, compact them, and unload idle settlements
+        ServerTickEvents.END_SERVER_TICK.register(server -> SettlementRegistry.get(server).tick());
+        
+        // Start the snapshot IO thread before anything loads a settlement
+        ServerLifecycleEvents.SERVER_STARTING.register(SettlementPersistence::start);
+        ServerLifecycleEvents.SERVER_STARTING.register(server -> SettlementTickManager.start());
+        
+        // Load building definitions from data packs, and again on /reload
+        ServerLifecycleEvents.SERVER_STARTING.register(server -> BuildingDefinitions.load(server.getResourceManager()));
+        ServerLifecycleEvents.END_DATA_PACK_RELOAD.register((server, resourceManager, success) -> {
+            if (success) {
+                BuildingDefinitions.load(resourceManager);
+                SettlementRegistry.get(server).forEachLoaded((owner, state) -> state.refreshDefinitions());
+            }
         });
         
-        // Save settlement data when server stops
-        ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
-            SettlementState state = SettlementState.getOrCreate(server.overworld());
-            state.setDirty();
-            LOGGER.info("[Pocket Settlement] Settlement state saved");
+        // Load a player's settlement when they join so it is simulated while they play
+        ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> {
+            SettlementRegistry registry = SettlementRegistry.get(server);
+            registry.getSettlement(handler.getPlayer().getUUID());
+            if (registry.isUnavailable(handler.getPlayer().getUUID())) {
+                handler.getPlayer().sendSystemMessage(Component.literal("§c[Pocket Settlement] Your settlement could not be loaded. Changes made now will not be saved; please tell an admin."));
+            }
         });
         
+        // Snapshot and close every loaded settlement, then wait for the writes
+        ServerLifecycleEvents.SERVER_STOPPING.register(server -> SettlementRegistry.get(server).unloadAll());
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> SettlementPersistence.stop());
+        ServerLifecycleEvents.SERVER_STOPPED.register(server -> SettlementTickManager.stop());
+        
         LOGGER.info("[Pocket Settlement] Initialization complete!");
     }
 }
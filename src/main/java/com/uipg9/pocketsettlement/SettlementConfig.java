@@ -0,0 +1,92 @@
+package com.uipg9.pocketsettlement;
+
+import net.fabricmc.loader.api.FabricLoader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Server-side tuning values, read from config/pocketsettlement.properties.
+ * Missing or invalid keys fall back to their defaults, and the file is
+ * rewritten with every known key so server admins can see what is tunable.
+ */
+public class SettlementConfig {
+    
+    private static final String FILE_NAME = PocketSettlement.MOD_ID + ".properties";
+    
+    // === Persistence ===
+    
+    /** Journal size at which the settlement is compacted into a fresh snapshot. */
+    public static int journalCompactBytes = 256 * 1024;
+    
+    /** Longest time between snapshots, so unjournaled progress is not held back forever. */
+    public static int snapshotIntervalTicks = 36000;  // 30 minutes
+    
+    /** How long a settlement stays in memory after its owner went offline. */
+    public static int idleUnloadTicks = 6000;  // 5 minutes
+    
+    // === Simulation ===
+    
+    /** Longest stretch of missed production a settlement catches up on when it loads; 0 disables it. */
+    public static int offlineCatchUpSeconds = 7 * 24 * 3600;  // 7 days
+    
+    /** Worker threads that tick settlements in parallel; 0 ticks them on the server thread. */
+    public static int tickThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    
+    /** Time per server tick after which no more settlements are started; the rest wait a tick. */
+    public static int tickBudgetMicros = 2000;
+    
+    /** Average tick time (ms) above which settlements are simulated less often, in larger steps. */
+    public static int sheddingMspt = 45;
+    
+    /** Average tick time (ms) below which the simulation interval shrinks back towards 1 second. */
+    public static int recoveryMspt = 35;
+    
+    // === Loading ===
+    
+    public static void load() {
+        Path file = FabricLoader.getInstance().getConfigDir().resolve(FILE_NAME);
+        Properties props = new Properties();
+        
+        if (Files.exists(file)) {
+            try (Reader reader = Files.newBufferedReader(file)) {
+                props.load(reader);
+            } catch (IOException e) {
+                PocketSettlement.LOGGER.error("[Pocket Settlement] Failed to read {}, using defaults", FILE_NAME, e);
+            }
+        }
+        
+        journalCompactBytes = readInt(props, "journalCompactBytes", journalCompactBytes, 4096);
+        snapshotIntervalTicks = readInt(props, "snapshotIntervalTicks", snapshotIntervalTicks, 20);
+        idleUnloadTicks = readInt(props, "idleUnloadTicks", idleUnloadTicks, 200);
+        offlineCatchUpSeconds = readInt(props, "offlineCatchUpSeconds", offlineCatchUpSeconds, 0);
+        tickThreads = readInt(props, "tickThreads", tickThreads, 0);
+        tickBudgetMicros = readInt(props, "tickBudgetMicros", tickBudgetMicros, 100);
+        sheddingMspt = readInt(props, "sheddingMspt", sheddingMspt, 1);
+        recoveryMspt = readInt(props, "recoveryMspt", recoveryMspt, 0);
+        
+        try (Writer writer = Files.newBufferedWriter(file)) {
+            props.store(writer, "Pocket Settlement server settings");
+        } catch (IOException e) {
+            PocketSettlement.LOGGER.warn("[Pocket Settlement] Could not write {}", FILE_NAME, e);
+        }
+    }
+    
+    private static int readInt(Properties props, String key, int defaultValue, int min) {
+        int value = defaultValue;
+        String raw = props.getProperty(key);
+        if (raw != null) {
+            try {
+                value = Math.max(min, Integer.parseInt(raw.trim()));
+            } catch (NumberFormatException e) {
+                PocketSettlement.LOGGER.warn("[Pocket Settlement] Invalid value '{}' for {}, using {}", raw, key, defaultValue);
+            }
+        }
+        props.setProperty(key, String.valueOf(value));
+        return value;
+    }
+}
@@ -4,6 +4,12 @@ import com.mojang.brigadier.CommandDispatcher;
 import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import com.uipg9.pocketsettlement.data.*;
+import com.uipg9.pocketsettlement.persistence.CodecBenchmark;
+import com.uipg9.pocketsettlement.persistence.PersistenceMetrics;
+import com.uipg9.pocketsettlement.persistence.SettlementPersistence;
+import com.uipg9.pocketsettlement.persistence.SettlementStore;
+import com.uipg9.pocketsettlement.tick.SettlementTickManager;
+import com.uipg9.pocketsettlement.tick.TickProbe;
 import net.minecraft.commands.CommandSourceStack;
 import net.minecraft.commands.Commands;
 import net.minecraft.network.chat.Component;
@@ -15,6 +21,10 @@ import net.minecraft.server.permissions.Permissions;
  */
 public class SettlementCommand {
     
+    private static final int CODEC_BENCHMARK_ROUNDS = 1000;
+    private static final int TICK_PROBE_WARMUP = 20000;
+    private static final int TICK_PROBE_ROUNDS = 10000;
+    
     /**
      * Helper method to check if a command source has operator permissions (level 2+).
      */
@@ -92,6 +102,28 @@ public class SettlementCommand {
                     return 1;
                 })
             )
+            .then(Commands.literal("stats")
+                .requires(SettlementCommand::hasOpPermission)
+                .executes(ctx -> {
+                    ServerPlayer player = ctx.getSource().getPlayerOrException();
+                    showStats(player);
+                    return 1;
+                })
+                .then(Commands.literal("codec")
+                    .executes(ctx -> {
+                        ServerPlayer player = ctx.getSource().getPlayerOrException();
+                        showCodecStats(player);
+                        return 1;
+                    })
+                )
+                .then(Commands.literal("tick")
+                    .executes(ctx -> {
+                        ServerPlayer player = ctx.getSource().getPlayerOrException();
+                        showTickProbe(player);
+                        return 1;
+                    })
+                )
+            )
             .then(Commands.literal("reset")
                 .requires(SettlementCommand::hasOpPermission)
                 .executes(ctx -> {
@@ -115,7 +147,7 @@ public class SettlementCommand {
     }
     
     private static void showInfo(ServerPlayer player) {
-        SettlementState state = SettlementState.getOrCreate(player.level());
+        SettlementState state = SettlementState.getOrCreate(player);
         
         player.sendSystemMessage(Component.literal("§6§l━━━━ Settlement Overview ━━━━"));
         player.sendSystemMessage(Component.literal("§7Day: §f" + state.getDaysPlayed()));
@@ -125,23 +157,26 @@ public class SettlementCommand {
         player.sendSystemMessage(Component.literal("§7Buildings: §f" + state.getBuildingCount(null)));
         player.sendSystemMessage(Component.literal("§7Happiness: §f" + state.getAverageHappiness() + "%"));
         player.sendSystemMessage(Component.literal("§7Stockpile: §f" + state.getStockpile().getTotalItems() + " items"));
+        int interval = SettlementTickManager.getIntervalSeconds();
+        player.sendSystemMessage(Component.literal(String.format("§7Simulation: every §f%d s§7, §f×%d §7progress per step §8(%.1f MSPT)",
+            interval, interval, SettlementTickManager.getAverageMspt())));
         player.sendSystemMessage(Component.literal("§6§l━━━━━━━━━━━━━━━━━━━━━━━"));
     }
     
     private static void giveCoins(ServerPlayer player, int amount) {
-        SettlementState state = SettlementState.getOrCreate(player.level());
+        SettlementState state = SettlementState.getOrCreate(player);
         state.addCoins(amount);
         player.sendSystemMessage(Component.literal("§a✓ Added §e" + amount + " coins§a. Total: §e" + state.getCoins()));
     }
     
     private static void giveInfluence(ServerPlayer player, int amount) {
-        SettlementState state = SettlementState.getOrCreate(player.level());
+        SettlementState state = SettlementState.getOrCreate(player);
         state.addInfluence(amount);
         player.sendSystemMessage(Component.literal("§a✓ Added §b" + amount + " influence§a. Total: §b" + state.getInfluence()));
     }
     
     private static void showCitizens(ServerPlayer player) {
-        SettlementState state = SettlementState.getOrCreate(player.level());
+        SettlementState state = SettlementState.getOrCreate(player);
         
         player.sendSystemMessage(Component.literal("§b§l━━━━ Citizens (" + state.getCitizenCount() + ") ━━━━"));
         
@@ -160,7 +195,7 @@ public class SettlementCommand {
     }
     
     private static void showBuildings(ServerPlayer player) {
-        SettlementState state = SettlementState.getOrCreate(player.level());
+        SettlementState state = SettlementState.getOrCreate(player);
         
         player.sendSystemMessage(Component.literal("§6§l━━━━ Buildings ━━━━"));
         
@@ -182,7 +217,7 @@ public class SettlementCommand {
     }
     
     private static void showTech(ServerPlayer player) {
-        SettlementState state = SettlementState.getOrCreate(player.level());
+        SettlementState state = SettlementState.getOrCreate(player);
         TechTree tree = state.getTechTree();
         
         player.sendSystemMessage(Component.literal("§5§l━━━━ Technology ━━━━"));
@@ -213,7 +248,7 @@ public class SettlementCommand {
     }
     
     private static void showStockpile(ServerPlayer player) {
-        SettlementState state = SettlementState.getOrCreate(player.level());
+        SettlementState state = SettlementState.getOrCreate(player);
         Stockpile stockpile = state.getStockpile();
         
         player.sendSystemMessage(Component.literal("§e§l━━━━ Stockpile ━━━━"));
@@ -234,9 +269,81 @@ public class SettlementCommand {
         player.sendSystemMessage(Component.literal("§e§l━━━━━━━━━━━━━━━━━━"));
     }
     
+    private static void showStats(ServerPlayer player) {
+        PersistenceMetrics metrics = SettlementPersistence.metrics();
+        
+        player.sendSystemMessage(Component.literal("§3§l━━━━ Persistence ━━━━"));
+        player.sendSystemMessage(Component.literal("§7Dirty marks: §f" + metrics.getDirtyMarks() + " §7→ Snapshots: §f" + metrics.getSnapshots()));
+        player.sendSystemMessage(Component.literal(String.format("§7Snapshot: §f%.2f ms §7avg, §f%.2f ms §7max, §f%.2f ms §7last",
+            metrics.getAverageSnapshotMillis(), metrics.getMaxSnapshotMillis(), metrics.getLastSnapshotMillis())));
+        player.sendSystemMessage(Component.literal(String.format("§7Journal: §f%d §7records, §f%.1f KB §7appended",
+            metrics.getJournalRecords(), metrics.getJournalBytes() / 1024.0)));
+        player.sendSystemMessage(Component.literal("§7Compactions: §f" + metrics.getCompactions() + " §7| Replayed on load: §f" + metrics.getReplayedRecords()));
+        player.sendSystemMessage(Component.literal(String.format("§7Sections: last §f%.1f KB §7re-encoded, §f%.1f KB §7reused | total §f%.1f KB §7re-encoded, §f%.1f KB §7reused",
+            metrics.getLastReencodedBytes() / 1024.0, metrics.getLastReusedBytes() / 1024.0, metrics.getReencodedBytes() / 1024.0, metrics.getReusedBytes() / 1024.0)));
+        player.sendSystemMessage(Component.literal(String.format("§7Writes: §f%d §7(§c%d §7failed), §f%.2f ms §7avg, §f%.2f ms §7max, last §f%.1f KB",
+            metrics.getWrites(), metrics.getFailedWrites(), metrics.getAverageWriteMillis(), metrics.getMaxWriteMillis(), metrics.getLastWriteBytes() / 1024.0)));
+        
+        SettlementRegistry registry = SettlementRegistry.get(player.level().getServer());
+        player.sendSystemMessage(Component.literal("§7Settlements: §f" + registry.getLoadedCount() + " §7loaded of §f" + registry.getOwnerCount()
+            + " §7| Loads: §f" + metrics.getLoads() + " §7Unloads: §f" + metrics.getUnloads()
+            + " §7| Regions open: §f" + SettlementPersistence.getOpenRegionCount()));
+        player.sendSystemMessage(Component.literal(String.format("§7Tick: §f%.2f ms §7last | Deferred: §f%d §7waiting, §f%d §7total",
+            SettlementTickManager.getLastTickMillis(), SettlementTickManager.getDeferredCount(), SettlementTickManager.getTotalDeferrals())));
+        SettlementStore store = registry.getStore(player.getUUID());
+        if (store != null) {
+            long[] generations = store.getGenerations();
+            player.sendSystemMessage(Component.literal("§7Slots: §fA §7gen §f" + generations[0] + "§7, §fB §7gen §f" + generations[1]
+                + " §7| Corrupt: §f" + metrics.getCorruptSlots()));
+        }
+        player.sendSystemMessage(Component.literal("§3§l━━━━━━━━━━━━━━━━━━"));
+    }
+    
+    private static void showCodecStats(ServerPlayer player) {
+        SettlementState state = SettlementState.getOrCreate(player);
+        
+        player.sendSystemMessage(Component.literal("§3§l━━━━ Save Layouts ━━━━"));
+        for (CodecBenchmark.Result result : CodecBenchmark.run(state, CODEC_BENCHMARK_ROUNDS)) {
+            player.sendSystemMessage(Component.literal(String.format("§7%s: §f%.1f µs §7encode (§f%.1f KB §7alloc), §f%.1f µs §7decode, §f%d §7B raw, §f%d §7B gzip",
+                result.layout(), result.encodeMicros(), result.allocatedBytes() / 1024.0, result.decodeMicros(), result.rawBytes(), result.compressedBytes())));
+        }
+        player.sendSystemMessage(Component.literal("§7Streamed snapshot matches tree: " + (CodecBenchmark.streamMatchesTree(state) ? "§ayes" : "§cno")));
+        player.sendSystemMessage(Component.literal("§8Averaged over " + CODEC_BENCHMARK_ROUNDS + " rounds"));
+        player.sendSystemMessage(Component.literal("§3§l━━━━━━━━━━━━━━━━━━"));
+    }
+    
+    private static void showTickProbe(ServerPlayer player) {
+        SettlementState state = SettlementState.getOrCreate(player);
+        TickProbe.Result result = TickProbe.run(state, TICK_PROBE_WARMUP, TICK_PROBE_ROUNDS);
+        
+        player.sendSystemMessage(Component.literal("§3§l━━━━ Settlement Tick ━━━━"));
+        player.sendSystemMessage(Component.literal(String.format("§7Time: §f%.2f µs §7per simulated second", result.micros())));
+        if (result.allocatedBytes() < 0) {
+            player.sendSystemMessage(Component.literal("§7Allocated: §8not reported by this JVM"));
+        } else {
+            String color = result.allocatedBytes() == 0 ? "§a" : "§c";
+            player.sendSystemMessage(Component.literal(String.format("§7Allocated: %s%.1f B §7per tick (should be 0)", color, result.allocatedBytes())));
+        }
+        
+        // The probe only runs processSettlement; dispatching is measured live
+        double dispatched = SettlementTickManager.getAverageTickAllocated();
+        if (dispatched >= 0) {
+            String color = dispatched == 0 ? "§a" : "§c";
+            player.sendSystemMessage(Component.literal(String.format("§7Server thread: %s%.1f B §7per server tick, live (0 outside new days and messages)", color, dispatched)));
+        }
+        
+        // The cached adjacency sum must match a full scan of the grid
+        int cached = state.getHappinessModifier();
+        int scanned = state.computeHappinessModifier();
+        player.sendSystemMessage(Component.literal("§7Happiness modifier: §f" + cached + " §7cached, §f" + scanned + " §7full scan "
+            + (cached == scanned ? "§a✓" : "§c✗")));
+        player.sendSystemMessage(Component.literal("§8Measured on a copy over " + result.rounds() + " ticks"));
+        player.sendSystemMessage(Component.literal("§3§l━━━━━━━━━━━━━━━━━━"));
+    }
+    
     private static void resetSettlement(ServerPlayer player) {
         // Create a fresh settlement state
-        SettlementState state = SettlementState.getOrCreate(player.level());
+        SettlementState state = SettlementState.getOrCreate(player);
         // Clear all data by reinitializing
         state.clearAll();
         state.setDirty();
@@ -244,12 +351,12 @@ public class SettlementCommand {
     }
     
     private static void unlockTech(ServerPlayer player, String techName) {
-        SettlementState state = SettlementState.getOrCreate(player.level());
+        SettlementState state = SettlementState.getOrCreate(player);
         
         try {
             TechTree.TechNode node = TechTree.TechNode.valueOf(techName.toUpperCase());
             state.getTechTree().unlock(node);
-            state.setDirty();
+            state.setDirty(SettlementState.Section.TECH);
             player.sendSystemMessage(Component.literal("§a✓ Unlocked: " + node.getDisplayName()));
         } catch (IllegalArgumentException e) {
             player.sendSystemMessage(Component.literal("§cUnknown tech: " + techName));
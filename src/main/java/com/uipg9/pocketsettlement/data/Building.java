@@ -12,6 +12,11 @@ public class Building {
     private int progress;       // 0-100, production progress
     private String assignedCitizenId;  // UUID string of assigned citizen
     
+    // Set while the settlement's ProductionSchedule runs this building; not saved
+    private ProductionSchedule schedule;
+    private int progressPerSecond;
+    private long progressSince;  // Schedule second at which progress was last stored
+    
     public Building() {
         this.type = BuildingType.EMPTY;
         this.level = 1;
@@ -34,7 +39,7 @@ public class Building {
     
     public void setType(BuildingType type) {
         this.type = type;
-        this.progress = 0;  // Reset progress when changing type
+        setProgress(0);  // Reset progress when changing type
     }
     
     public int getLevel() {
@@ -51,24 +56,59 @@ public class Building {
         }
     }
     
+    /**
+     * While scheduled, progress grows by a fixed amount every simulation
+     * second and is derived from the schedule's clock instead of stored.
+     */
     public int getProgress() {
-        return progress;
+        if (schedule == null) {
+            return progress;
+        }
+        return (int) Math.min(100, progress + progressPerSecond * (schedule.getSeconds() - progressSince));
     }
     
     public void setProgress(int progress) {
         this.progress = Math.max(0, Math.min(100, progress));
+        if (schedule != null) {
+            progressSince = schedule.getSeconds();
+        }
     }
     
     public void addProgress(int amount) {
-        this.progress = Math.min(100, this.progress + amount);
+        setProgress(getProgress() + amount);
     }
     
     public boolean isProductionReady() {
-        return progress >= 100;
+        return getProgress() >= 100;
     }
     
     public void resetProgress() {
-        this.progress = 0;
+        setProgress(0);
+    }
+    
+    /**
+     * Progress gained per simulation second at the current efficiency.
+     * Progress per second = 100 / (baseTime / 20) * (efficiency / 100),
+     * simplified to 2000 * efficiency / baseTime, and at least 1.
+     */
+    public int getProgressPerSecond(SettlementState state) {
+        float progressPerSecond = (2000f * getEfficiency(state)) / (type.getBaseProductionTime() * 100f);
+        return Math.max(1, (int) progressPerSecond);
+    }
+    
+    void startProduction(ProductionSchedule schedule, int progressPerSecond) {
+        stopProduction();
+        this.schedule = schedule;
+        this.progressPerSecond = progressPerSecond;
+        this.progressSince = schedule.getSeconds();
+    }
+    
+    /**
+     * Store the progress derived so far and stop deriving it.
+     */
+    void stopProduction() {
+        progress = getProgress();
+        schedule = null;
     }
     
     public String getAssignedCitizenId() {
@@ -114,7 +154,7 @@ public class Building {
         CompoundTag nbt = new CompoundTag();
         nbt.putString("type", type.name());
         nbt.putInt("level", level);
-        nbt.putInt("progress", progress);
+        nbt.putInt("progress", getProgress());
         nbt.putString("citizen", assignedCitizenId);
         return nbt;
     }
@@ -0,0 +1,357 @@
+package com.uipg9.pocketsettlement.data;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.uipg9.pocketsettlement.PocketSettlement;
+import com.uipg9.pocketsettlement.data.BuildingType.AdjacencyBonus;
+import com.uipg9.pocketsettlement.data.TechTree.TechNode;
+import net.minecraft.core.registries.BuiltInRegistries;
+import net.minecraft.resources.Identifier;
+import net.minecraft.server.packs.resources.Resource;
+import net.minecraft.server.packs.resources.ResourceManager;
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.Items;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Costs, production times, adjacency effects and production outputs of every
+ * building type, loaded from the data pack files
+ * data/pocketsettlement/settlement_building/&lt;type&gt;.json on server start and
+ * on /reload. The mod ships the defaults; a data pack can override any file.
+ * 
+ * Each load is compiled into flat arrays indexed by the type's ordinal, with a
+ * {@link ProductionTable} for every level and combination of the techs the
+ * outputs depend on. The tick only reads arrays. A new load replaces the whole
+ * set at once, between ticks. Each production also names the stockpile
+ * {@link ResourceCategory} of its outputs.
+ * 
+ * Which types exist, their names, icons and jobs stay in {@link BuildingType}.
+ */
+public final class BuildingDefinitions {
+    
+    private static final String DIRECTORY = "settlement_building";
+    private static final int MAX_LEVEL = 5;
+    private static final int MAX_TECHS = 6;  // Relevant techs per type, 2^6 table variants
+    
+    private static volatile BuildingDefinitions active = new BuildingDefinitions();
+    
+    private final int[] cost = new int[BuildingType.values().length];
+    private final int[] productionTicks = new int[BuildingType.values().length];
+    private final AdjacencyBonus[] adjacency = new AdjacencyBonus[BuildingType.values().length];
+    private final int[] houseHappiness = new int[BuildingType.values().length];
+    
+    // Table for (level, variant) at [type][(level - 1) << techs[type].length | variant]
+    private final ProductionTable[][] tables = new ProductionTable[BuildingType.values().length][];
+    private final int[][] techs = new int[BuildingType.values().length][];  // TechNode ordinals
+    
+    // Stockpile category of every item some production outputs, and per type
+    // what it outputs and as which category, to rebuild that after a load
+    private final Map<Item, ResourceCategory> categories = new HashMap<>();
+    private final Item[][] outputItems = new Item[BuildingType.values().length][];
+    private final ResourceCategory[] outputCategory = new ResourceCategory[BuildingType.values().length];
+    
+    private BuildingDefinitions() {
+        for (BuildingType type : BuildingType.values()) {
+            productionTicks[type.ordinal()] = 20;
+            adjacency[type.ordinal()] = AdjacencyBonus.NONE;
+            techs[type.ordinal()] = new int[0];
+            tables[type.ordinal()] = new ProductionTable[MAX_LEVEL];
+            outputItems[type.ordinal()] = new Item[0];
+            outputCategory[type.ordinal()] = ResourceCategory.MISC;
+        }
+    }
+    
+    // === Lookup ===
+    
+    public static int getCost(BuildingType type) {
+        return active.cost[type.ordinal()];
+    }
+    
+    /**
+     * @return ticks one production cycle takes at 100% efficiency
+     */
+    public static int getProductionTicks(BuildingType type) {
+        return active.productionTicks[type.ordinal()];
+    }
+    
+    public static AdjacencyBonus getAdjacency(BuildingType type) {
+        return active.adjacency[type.ordinal()];
+    }
+    
+    /**
+     * @return happiness this building gives the citizens for each house next to it
+     */
+    public static int getHouseHappiness(BuildingType type) {
+        return active.houseHappiness[type.ordinal()];
+    }
+    
+    /**
+     * @return the stockpile category of an item; the first building type that
+     *         produces it decides
+     */
+    public static ResourceCategory getCategory(Item item) {
+        return active.categories.getOrDefault(item, ResourceCategory.MISC);
+    }
+    
+    /**
+     * @return the production table for a building, or null if it produces nothing
+     */
+    public static ProductionTable getProductionTable(BuildingType type, int level, long unlockedTechs) {
+        BuildingDefinitions definitions = active;
+        int[] relevant = definitions.techs[type.ordinal()];
+        int variant = 0;
+        for (int i = 0; i < relevant.length; i++) {
+            if ((unlockedTechs & 1L << relevant[i]) != 0) {
+                variant |= 1 << i;
+            }
+        }
+        int clamped = Math.max(1, Math.min(MAX_LEVEL, level));
+        return definitions.tables[type.ordinal()][(clamped - 1) << relevant.length | variant];
+    }
+    
+    // === Loading ===
+    
+    /**
+     * Load every building definition from the server's data packs. A file that
+     * fails to parse keeps that type's previous definition.
+     */
+    public static void load(ResourceManager resources) {
+        BuildingDefinitions previous = active;
+        BuildingDefinitions loaded = new BuildingDefinitions();
+        boolean[] found = new boolean[BuildingType.values().length];
+        
+        Map<Identifier, Resource> files = resources.listResources(DIRECTORY,
+            id -> id.getNamespace().equals(PocketSettlement.MOD_ID) && id.getPath().endsWith(".json"));
+        for (Map.Entry<Identifier, Resource> file : files.entrySet()) {
+            String path = file.getKey().getPath();
+            String name = path.substring(DIRECTORY.length() + 1, path.length() - ".json".length());
+            BuildingType type;
+            try {
+                type = BuildingType.valueOf(name.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                PocketSettlement.LOGGER.warn("[Pocket Settlement] Unknown building type in {}", file.getKey());
+                continue;
+            }
+            
+            try (Reader reader = file.getValue().openAsReader()) {
+                loaded.define(type, JsonParser.parseReader(reader).getAsJsonObject());
+                found[type.ordinal()] = true;
+            } catch (IOException | RuntimeException e) {
+                PocketSettlement.LOGGER.error("[Pocket Settlement] Invalid building definition {}: {}", file.getKey(), e.getMessage());
+                loaded.copy(previous, type);
+                found[type.ordinal()] = true;
+            }
+        }
+        
+        for (BuildingType type : BuildingType.values()) {
+            if (!found[type.ordinal()] && type != BuildingType.EMPTY) {
+                PocketSettlement.LOGGER.warn("[Pocket Settlement] No definition for building {}, keeping the previous one", type.name().toLowerCase(Locale.ROOT));
+                loaded.copy(previous, type);
+            }
+        }
+        
+        for (BuildingType type : BuildingType.values()) {
+            for (Item item : loaded.outputItems[type.ordinal()]) {
+                loaded.categories.putIfAbsent(item, loaded.outputCategory[type.ordinal()]);
+            }
+        }
+        
+        active = loaded;
+        PocketSettlement.LOGGER.info("[Pocket Settlement] Loaded {} building definitions", files.size());
+    }
+    
+    private void copy(BuildingDefinitions from, BuildingType type) {
+        int i = type.ordinal();
+        cost[i] = from.cost[i];
+        productionTicks[i] = from.productionTicks[i];
+        adjacency[i] = from.adjacency[i];
+        houseHappiness[i] = from.houseHappiness[i];
+        techs[i] = from.techs[i];
+        tables[i] = from.tables[i];
+        outputItems[i] = from.outputItems[i];
+        outputCategory[i] = from.outputCategory[i];
+    }
+    
+    private void define(BuildingType type, JsonObject json) {
+        int i = type.ordinal();
+        cost[i] = Math.max(0, getInt(json, "cost", 0));
+        productionTicks[i] = Math.max(20, getInt(json, "production_ticks", 20));
+        houseHappiness[i] = getInt(json, "house_happiness", 0);
+        adjacency[i] = json.has("adjacency")
+            ? AdjacencyBonus.valueOf(json.get("adjacency").getAsString().toUpperCase(Locale.ROOT))
+            : AdjacencyBonus.NONE;
+        
+        if (json.has("production")) {
+            compileProduction(type, json.getAsJsonObject("production"));
+        }
+    }
+    
+    // === Production ===
+    
+    /**
+     * One entry of a production's outputs. Amounts are per building level.
+     */
+    private record Output(Item item, int min, int max, double weight, double below, int minLevel, int tech,
+                          Item bonusItem, double bonusChance, int bonusDivisor) {}
+    
+    /**
+     * Build the tables for every level and combination of the techs the
+     * outputs require. "pick" is "weighted" (by each output's weight) or
+     * "threshold" (each output takes the part of the roll below its "below"
+     * that no earlier output took). "category" files the outputs in the
+     * stockpile.
+     */
+    private void compileProduction(BuildingType type, JsonObject json) {
+        ResourceCategory category = json.has("category")
+            ? ResourceCategory.valueOf(json.get("category").getAsString().toUpperCase(Locale.ROOT))
+            : ResourceCategory.MISC;
+        boolean threshold = "threshold".equals(json.has("pick") ? json.get("pick").getAsString() : "weighted");
+        int[] rolls = getRange(json, "rolls", 1);
+        
+        List<Output> outputs = new ArrayList<>();
+        List<Integer> relevant = new ArrayList<>();
+        List<Item> items = new ArrayList<>();
+        for (JsonElement element : json.getAsJsonArray("outputs")) {
+            Output output = parseOutput(element.getAsJsonObject());
+            if (output.tech() >= 0 && !relevant.contains(output.tech())) {
+                relevant.add(output.tech());
+            }
+            outputs.add(output);
+            items.add(output.item());
+            if (output.bonusItem() != null) {
+                items.add(output.bonusItem());
+            }
+        }
+        if (relevant.size() > MAX_TECHS) {
+            throw new JsonParseException("outputs depend on more than " + MAX_TECHS + " techs");
+        }
+        
+        int[] techOrdinals = relevant.stream().mapToInt(Integer::intValue).toArray();
+        int variants = 1 << techOrdinals.length;
+        ProductionTable[] compiled = new ProductionTable[MAX_LEVEL * variants];
+        for (int level = 1; level <= MAX_LEVEL; level++) {
+            for (int variant = 0; variant < variants; variant++) {
+                long unlocked = 0;
+                for (int t = 0; t < techOrdinals.length; t++) {
+                    if ((variant & 1 << t) != 0) {
+                        unlocked |= 1L << techOrdinals[t];
+                    }
+                }
+                compiled[(level - 1) * variants + variant] = compileTable(outputs, threshold, rolls, level, unlocked);
+            }
+        }
+        techs[type.ordinal()] = techOrdinals;
+        tables[type.ordinal()] = compiled;
+        outputItems[type.ordinal()] = items.toArray(new Item[0]);
+        outputCategory[type.ordinal()] = category;
+    }
+    
+    private static ProductionTable compileTable(List<Output> outputs, boolean threshold, int[] rolls, int level, long unlocked) {
+        ProductionTable.Builder table = new ProductionTable.Builder().rolls(rolls[0], rolls[1]);
+        boolean any = false;
+        double taken = 0;
+        for (Output output : outputs) {
+            boolean available = level >= output.minLevel() && (output.tech() < 0 || (unlocked & 1L << output.tech()) != 0);
+            if (!available) {
+                continue;
+            }
+            double weight = output.weight();
+            if (threshold) {
+                weight = output.below() - taken;
+                taken = Math.max(taken, output.below());
+            }
+            if (weight <= 0) {
+                continue;
+            }
+            
+            double each = weight / (output.max() - output.min() + 1);
+            for (int amount = output.min(); amount <= output.max(); amount++) {
+                int count = level * amount;
+                if (output.bonusItem() == null) {
+                    table.outcome(each, output.item(), count);
+                } else {
+                    table.outcome(each * (1 - output.bonusChance()), output.item(), count);
+                    table.outcome(each * output.bonusChance(), output.item(), count, output.bonusItem(), count / output.bonusDivisor());
+                }
+            }
+            any = true;
+        }
+        return any ? table.build() : null;
+    }
+    
+    private static Output parseOutput(JsonObject json) {
+        int[] amount = getRange(json, "amount", 1);
+        int tech = -1;
+        if (json.has("tech")) {
+            String id = json.get("tech").getAsString();
+            tech = findTech(id).ordinal();
+        }
+        
+        Item bonusItem = null;
+        double bonusChance = 0;
+        int bonusDivisor = 1;
+        if (json.has("bonus")) {
+            JsonObject bonus = json.getAsJsonObject("bonus");
+            bonusItem = getItem(bonus, "item");
+            bonusChance = Math.max(0, Math.min(1, bonus.get("chance").getAsDouble()));
+            bonusDivisor = Math.max(1, getInt(bonus, "divisor", 1));
+        }
+        
+        return new Output(getItem(json, "item"), amount[0], amount[1],
+            json.has("weight") ? json.get("weight").getAsDouble() : 1.0,
+            json.has("below") ? json.get("below").getAsDouble() : 1.0,
+            getInt(json, "min_level", 1), tech, bonusItem, bonusChance, bonusDivisor);
+    }
+    
+    // === JSON Helpers ===
+    
+    private static int getInt(JsonObject json, String key, int defaultValue) {
+        return json.has(key) ? json.get(key).getAsInt() : defaultValue;
+    }
+    
+    /**
+     * Read a number or a [min, max] pair.
+     */
+    private static int[] getRange(JsonObject json, String key, int defaultValue) {
+        if (!json.has(key)) {
+            return new int[]{defaultValue, defaultValue};
+        }
+        JsonElement element = json.get(key);
+        if (element.isJsonArray()) {
+            JsonArray range = element.getAsJsonArray();
+            int min = Math.max(0, range.get(0).getAsInt());
+            return new int[]{min, Math.max(min, range.get(1).getAsInt())};
+        }
+        int value = Math.max(0, element.getAsInt());
+        return new int[]{value, value};
+    }
+    
+    private static Item getItem(JsonObject json, String key) {
+        String id = json.get(key).getAsString();
+        Identifier itemId = Identifier.tryParse(id);
+        Item item = itemId == null ? null : BuiltInRegistries.ITEM.getValue(itemId);
+        if (item == null || item == Items.AIR) {
+            throw new JsonParseException("unknown item " + id);
+        }
+        return item;
+    }
+    
+    private static TechNode findTech(String id) {
+        for (TechNode tech : TechNode.values()) {
+            if (tech.getId().equals(id)) {
+                return tech;
+            }
+        }
+        throw new JsonParseException("unknown tech " + id);
+    }
+}
@@ -63,19 +63,7 @@ public enum BuildingType {
      * Get the base construction cost in coins.
      */
     public int getBaseCost() {
-        return switch (this) {
-            case EMPTY -> 0;
-            case HOUSE -> 100;
-            case GREENHOUSE -> 250;
-            case QUARRY -> 300;
-            case LUMBER_YARD -> 200;
-            case MOB_BARN -> 350;
-            case MARKET -> 500;
-            case BANK -> 1000;
-            case ACADEMY -> 750;
-            case GUARD_TOWER -> 400;
-            case TOWN_HALL -> 2000;
-        };
+        return BuildingDefinitions.getCost(this);
     }
     
     /**
@@ -89,27 +77,14 @@ public enum BuildingType {
      * Get base production time in ticks (20 ticks = 1 second).
      */
     public int getBaseProductionTime() {
-        return switch (this) {
-            case GREENHOUSE -> 200;    // 10 seconds
-            case QUARRY -> 300;        // 15 seconds
-            case LUMBER_YARD -> 250;   // 12.5 seconds
-            case MOB_BARN -> 400;      // 20 seconds
-            default -> 0;
-        };
+        return BuildingDefinitions.getProductionTicks(this);
     }
     
     /**
      * Get adjacency synergy bonus type.
      */
     public AdjacencyBonus getAdjacencyBonus() {
-        return switch (this) {
-            case HOUSE -> AdjacencyBonus.HOUSING;      // Near markets = tax bonus
-            case MARKET -> AdjacencyBonus.COMMERCE;    // Near houses = more coins
-            case QUARRY -> AdjacencyBonus.POLLUTION;   // Near houses = happiness penalty
-            case GREENHOUSE -> AdjacencyBonus.NATURE;  // Near houses = happiness bonus
-            case GUARD_TOWER -> AdjacencyBonus.SECURITY; // Near anything = protection bonus
-            default -> AdjacencyBonus.NONE;
-        };
+        return BuildingDefinitions.getAdjacency(this);
     }
     
     public enum AdjacencyBonus {
@@ -1,5 +1,6 @@
 package com.uipg9.pocketsettlement.data;
 
+import com.uipg9.pocketsettlement.persistence.NbtStreamWriter;
 import net.minecraft.nbt.CompoundTag;
 import java.util.UUID;
 
@@ -45,7 +46,11 @@ public class Citizen {
     }
     
     public Citizen(String name) {
-        this.id = UUID.randomUUID().toString();
+        this(UUID.randomUUID().toString(), name);
+    }
+    
+    public Citizen(String id, String name) {
+        this.id = id;
         this.name = name;
         this.job = CitizenJob.NONE;
         this.level = 1;
@@ -183,6 +188,20 @@ public class Citizen {
         return nbt;
     }
     
+    /**
+     * Stream the same entries as {@link #toNBT()} as a compound list element.
+     */
+    public void writeTo(NbtStreamWriter out) {
+        out.beginListCompound();
+        out.putString("id", id);
+        out.putString("name", name);
+        out.putString("job", job.name());
+        out.putInt("level", level);
+        out.putInt("xp", xp);
+        out.putInt("happiness", happiness);
+        out.endCompound();
+    }
+    
     public static Citizen fromNBT(CompoundTag nbt) {
         Citizen citizen = new Citizen();
         citizen.id = nbt.getStringOr("id", "");
@@ -1,5 +1,6 @@
 package com.uipg9.pocketsettlement.data;
 
+import com.uipg9.pocketsettlement.persistence.NbtStreamWriter;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.core.registries.BuiltInRegistries;
 import net.minecraft.resources.Identifier;
@@ -52,6 +53,19 @@ public class Contract {
         this.id = UUID.randomUUID().toString();
     }
     
+    /**
+     * Recreate a generated contract from its journal record.
+     */
+    static Contract restore(String id, String itemId, int amount, int reward, long expiresAt) {
+        Contract contract = new Contract();
+        contract.id = id;
+        contract.requiredItemId = itemId;
+        contract.requiredAmount = amount;
+        contract.reward = reward;
+        contract.expiresAt = expiresAt;
+        return contract;
+    }
+    
     /**
      * Generate a random contract.
      */
@@ -91,6 +105,10 @@ public class Contract {
         }
     }
     
+    public String getRequiredItemId() {
+        return requiredItemId;
+    }
+    
     public int getRequiredAmount() {
         return requiredAmount;
     }
@@ -107,6 +125,10 @@ public class Contract {
         return completed;
     }
     
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+    
     public boolean isExpired(long currentWorldTime) {
         return currentWorldTime >= expiresAt;
     }
@@ -163,6 +185,21 @@ public class Contract {
         return nbt;
     }
     
+    /**
+     * Stream the same entries as {@link #toNBT()} as a compound list element.
+     */
+    public void writeTo(NbtStreamWriter out) {
+        out.beginListCompound();
+        out.putString("id", id);
+        out.putString("itemId", requiredItemId);
+        out.putInt("amount", requiredAmount);
+        out.putInt("reward", reward);
+        out.putInt("delivered", delivered);
+        out.putBoolean("completed", completed);
+        out.putLong("expires", expiresAt);
+        out.endCompound();
+    }
+    
     public static Contract fromNBT(CompoundTag nbt) {
         Contract contract = new Contract();
         contract.id = nbt.getStringOr("id", UUID.randomUUID().toString());
@@ -0,0 +1,214 @@
+package com.uipg9.pocketsettlement.data;
+
+import com.uipg9.pocketsettlement.persistence.NbtStreamWriter;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.StringTag;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact NBT layout for the settlement grid, modelled on chunk sections.
+ * 
+ * Instead of one compound per plot, the grid is stored as a palette of the
+ * building types in use, the palette index of every plot bit-packed into a
+ * long array, one int per plot holding level and progress, and one int per
+ * plot holding the worker's index in the saved citizen list (-1 for none).
+ * Plots are ordered x first, then z, like the old list.
+ * 
+ * The old list layout is still read for saves from before this codec.
+ */
+public final class GridCodec {
+    
+    public static final String KEY = "gridPacked";
+    public static final String LEGACY_KEY = "grid";
+    
+    /** Bump when the packed layout changes; newer layouts are not read. */
+    public static final int VERSION = 1;
+    
+    private static final int PLOTS = SettlementState.GRID_SIZE * SettlementState.GRID_SIZE;
+    private static final int LEVEL_BITS = 4;
+    private static final int LEVEL_MASK = (1 << LEVEL_BITS) - 1;
+    
+    private GridCodec() {}
+    
+    // === Packed Layout ===
+    
+    /**
+     * The packed arrays of one grid, shared by the tag and stream encoders.
+     */
+    private record Packed(List<BuildingType> palette, long[] types, int[] cells, int[] workers) {}
+    
+    /**
+     * @param citizenIndex position of each citizen id in the saved citizen list
+     */
+    public static CompoundTag encode(Building[][] grid, Map<String, Integer> citizenIndex) {
+        Packed packed = packGrid(grid, citizenIndex);
+        
+        ListTag paletteList = new ListTag();
+        for (BuildingType type : packed.palette()) {
+            paletteList.add(StringTag.valueOf(type.name()));
+        }
+        
+        CompoundTag nbt = new CompoundTag();
+        nbt.putInt("version", VERSION);
+        nbt.put("palette", paletteList);
+        nbt.putLongArray("types", packed.types());
+        nbt.putIntArray("cells", packed.cells());
+        nbt.putIntArray("workers", packed.workers());
+        return nbt;
+    }
+    
+    /**
+     * Stream the same layout as {@link #encode} under {@link #KEY}.
+     */
+    public static void write(NbtStreamWriter out, Building[][] grid, Map<String, Integer> citizenIndex) {
+        Packed packed = packGrid(grid, citizenIndex);
+        
+        out.beginCompound(KEY);
+        out.putInt("version", VERSION);
+        out.beginList("palette", NbtStreamWriter.TAG_STRING, packed.palette().size());
+        for (BuildingType type : packed.palette()) {
+            out.listString(type.name());
+        }
+        out.putLongArray("types", packed.types());
+        out.putIntArray("cells", packed.cells());
+        out.putIntArray("workers", packed.workers());
+        out.endCompound();
+    }
+    
+    private static Packed packGrid(Building[][] grid, Map<String, Integer> citizenIndex) {
+        List<BuildingType> palette = new ArrayList<>();
+        Map<BuildingType, Integer> paletteIndex = new EnumMap<>(BuildingType.class);
+        int[] types = new int[PLOTS];
+        int[] cells = new int[PLOTS];
+        int[] workers = new int[PLOTS];
+        
+        for (int i = 0; i < PLOTS; i++) {
+            Building building = grid[i % SettlementState.GRID_SIZE][i / SettlementState.GRID_SIZE];
+            Integer typeIndex = paletteIndex.get(building.getType());
+            if (typeIndex == null) {
+                typeIndex = palette.size();
+                palette.add(building.getType());
+                paletteIndex.put(building.getType(), typeIndex);
+            }
+            types[i] = typeIndex;
+            cells[i] = building.getLevel() | building.getProgress() << LEVEL_BITS;
+            workers[i] = building.hasWorker() ? citizenIndex.getOrDefault(building.getAssignedCitizenId(), -1) : -1;
+        }
+        
+        return new Packed(palette, pack(types, bitsFor(palette.size())), cells, workers);
+    }
+    
+    /**
+     * Decode a packed grid into {@code grid}.
+     * 
+     * @param citizenIds the saved citizen list, in order
+     * @return false if the tag is from a newer version or malformed; the grid
+     *         is left untouched in that case
+     */
+    public static boolean decode(CompoundTag nbt, Building[][] grid, List<String> citizenIds) {
+        if (nbt.getIntOr("version", 0) != VERSION) {
+            return false;
+        }
+        
+        ListTag paletteList = nbt.getListOrEmpty("palette");
+        BuildingType[] palette = new BuildingType[paletteList.size()];
+        for (int i = 0; i < palette.length; i++) {
+            try {
+                palette[i] = BuildingType.valueOf(paletteList.getStringOr(i, "EMPTY"));
+            } catch (IllegalArgumentException e) {
+                palette[i] = BuildingType.EMPTY;
+            }
+        }
+        
+        long[] packedTypes = nbt.getLongArray("types").orElse(new long[0]);
+        int[] cells = nbt.getIntArray("cells").orElse(new int[0]);
+        int[] workers = nbt.getIntArray("workers").orElse(new int[0]);
+        if (palette.length == 0 || cells.length != PLOTS || workers.length != PLOTS) {
+            return false;
+        }
+        int[] types = unpack(packedTypes, bitsFor(palette.length), PLOTS);
+        if (types == null) {
+            return false;
+        }
+        
+        Building[] decoded = new Building[PLOTS];
+        for (int i = 0; i < PLOTS; i++) {
+            if (types[i] >= palette.length) {
+                return false;
+            }
+            Building building = new Building(palette[types[i]]);
+            building.setLevel(cells[i] & LEVEL_MASK);
+            building.setProgress(cells[i] >>> LEVEL_BITS);
+            if (workers[i] >= 0 && workers[i] < citizenIds.size()) {
+                building.setAssignedCitizenId(citizenIds.get(workers[i]));
+            }
+            decoded[i] = building;
+        }
+        
+        for (int i = 0; i < PLOTS; i++) {
+            grid[i % SettlementState.GRID_SIZE][i / SettlementState.GRID_SIZE] = decoded[i];
+        }
+        return true;
+    }
+    
+    // === Bit Packing ===
+    
+    private static int bitsFor(int paletteSize) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(paletteSize - 1));
+    }
+    
+    /**
+     * Pack values into longs like vanilla's SimpleBitStorage: values never
+     * span two longs, so each long holds {@code 64 / bits} of them.
+     */
+    private static long[] pack(int[] values, int bits) {
+        int perLong = 64 / bits;
+        long[] packed = new long[(values.length + perLong - 1) / perLong];
+        for (int i = 0; i < values.length; i++) {
+            packed[i / perLong] |= (long) values[i] << (i % perLong * bits);
+        }
+        return packed;
+    }
+    
+    private static int[] unpack(long[] packed, int bits, int count) {
+        int perLong = 64 / bits;
+        if (packed.length != (count + perLong - 1) / perLong) {
+            return null;
+        }
+        long mask = (1L << bits) - 1;
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = (int) (packed[i / perLong] >>> (i % perLong * bits) & mask);
+        }
+        return values;
+    }
+    
+    // === Legacy Layout ===
+    
+    /**
+     * Encode the grid as the old list of one compound per plot. Only used to
+     * compare against the packed layout.
+     */
+    public static ListTag encodeLegacy(Building[][] grid) {
+        ListTag gridList = new ListTag();
+        for (int z = 0; z < SettlementState.GRID_SIZE; z++) {
+            for (int x = 0; x < SettlementState.GRID_SIZE; x++) {
+                gridList.add(grid[x][z].toNBT());
+            }
+        }
+        return gridList;
+    }
+    
+    public static void decodeLegacy(ListTag gridList, Building[][] grid) {
+        for (int i = 0; i < gridList.size() && i < PLOTS; i++) {
+            int x = i % SettlementState.GRID_SIZE;
+            int z = i / SettlementState.GRID_SIZE;
+            grid[x][z] = Building.fromNBT(gridList.getCompoundOrEmpty(i));
+        }
+    }
+}
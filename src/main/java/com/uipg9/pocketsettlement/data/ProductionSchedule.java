@@ -0,0 +1,119 @@
+package com.uipg9.pocketsettlement.data;
+
+import it.unimi.dsi.fastutil.longs.LongHeapPriorityQueue;
+
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Completion times of a settlement's producers.
+ * 
+ * Each producer with a worker gains a fixed amount of progress per second, so
+ * the second it completes is known in advance. The schedule keeps those
+ * seconds in a priority queue and only hands out the plots that are due, so
+ * a simulation second costs one queue peek plus one step per completion.
+ * Progress in between is derived from the schedule's clock by the buildings
+ * themselves (see {@link Building#getProgress()}).
+ * 
+ * Anything that changes a producer's rate (construction, upgrades, demolition,
+ * worker assignment, worker level) calls {@link #invalidate()}; the schedule
+ * is rebuilt from the current progress before the next second.
+ */
+public class ProductionSchedule {
+    
+    private static final int PLOTS = SettlementState.GRID_SIZE * SettlementState.GRID_SIZE;
+    private static final int PLOT_BITS = 8;
+    
+    private final SettlementState state;
+    
+    /** Simulation seconds since the settlement was loaded. */
+    private long seconds;
+    
+    /** Queue entries are (due second << PLOT_BITS | plot); entries not matching dueAt are stale. */
+    private final LongHeapPriorityQueue queue = new LongHeapPriorityQueue();
+    private final long[] dueAt = new long[PLOTS];
+    private boolean rebuild = true;
+    
+    ProductionSchedule(SettlementState state) {
+        this.state = state;
+        Arrays.fill(dueAt, -1);
+    }
+    
+    public long getSeconds() {
+        return seconds;
+    }
+    
+    /**
+     * Recompute every producer's completion time before the next second.
+     */
+    public void invalidate() {
+        rebuild = true;
+    }
+    
+    /**
+     * @return true if any producer is running, so progress is changing
+     */
+    public boolean isProducing() {
+        return !queue.isEmpty();
+    }
+    
+    /**
+     * Advance {@code count} simulation seconds and pass every producer that
+     * completes in them to {@code onComplete} with the settlement and a plot
+     * index (x + z * GRID_SIZE), in order. Passing the settlement lets the
+     * caller use a method reference that captures nothing, so a call does not
+     * allocate. The building's progress has reached 100
+     * at that point; the callback produces and resets it, and the plot is then
+     * scheduled again, so a producer can complete more than once per call.
+     */
+    public void advance(int count, ObjIntConsumer<SettlementState> onComplete) {
+        for (int i = 0; i < count; i++) {
+            advanceSecond(onComplete);
+        }
+    }
+    
+    private void advanceSecond(ObjIntConsumer<SettlementState> onComplete) {
+        if (rebuild) {
+            rebuildAll();
+        }
+        seconds++;
+        
+        while (!queue.isEmpty() && queue.firstLong() >>> PLOT_BITS <= seconds) {
+            long entry = queue.dequeueLong();
+            int plot = (int) (entry & (1 << PLOT_BITS) - 1);
+            if (dueAt[plot] != entry >>> PLOT_BITS) {
+                continue;
+            }
+            dueAt[plot] = -1;
+            onComplete.accept(state, plot);
+            if (!rebuild) {
+                schedule(plot);
+            }
+        }
+    }
+    
+    private void rebuildAll() {
+        rebuild = false;
+        queue.clear();
+        Arrays.fill(dueAt, -1);
+        for (int plot = 0; plot < PLOTS; plot++) {
+            schedule(plot);
+        }
+    }
+    
+    private void schedule(int plot) {
+        Building building = state.getBuilding(plot % SettlementState.GRID_SIZE, plot / SettlementState.GRID_SIZE);
+        if (!building.getType().isProducer() || !building.hasWorker()) {
+            building.stopProduction();
+            dueAt[plot] = -1;
+            return;
+        }
+        
+        int step = building.getProgressPerSecond(state);
+        building.startProduction(this, step);
+        int remaining = Math.max(1, (100 - building.getProgress() + step - 1) / step);
+        long due = seconds + remaining;
+        dueAt[plot] = due;
+        queue.enqueue(due << PLOT_BITS | plot);
+    }
+}
@@ -0,0 +1,179 @@
+package com.uipg9.pocketsettlement.data;
+
+import net.minecraft.world.item.Item;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * What one production cycle of a producer yields, compiled from its building
+ * definition for one level and set of relevant techs (see
+ * {@link BuildingDefinitions}).
+ * 
+ * A cycle makes one or more rolls; every roll picks one outcome and each
+ * outcome is a fixed list of items and amounts. Outcomes are picked in O(1)
+ * with Vose's alias method, so producing allocates nothing and does not look
+ * at the tech tree. Tables never change once built; upgrading a building or
+ * unlocking a tech just selects another one.
+ */
+public final class ProductionTable {
+    
+    // Outcome o yields items[j] x amounts[j] for j in start[o] until start[o + 1]
+    private final Item[] items;
+    private final int[] amounts;
+    private final int[] start;
+    private final double[] weights;  // Normalised, for the offline catch-up
+    
+    // Alias table: column c keeps outcome c with chance[c], otherwise gives alias[c]
+    private final double[] chance;
+    private final int[] alias;
+    
+    private final int minRolls;
+    private final int maxRolls;
+    
+    private ProductionTable(Builder builder) {
+        int outcomes = builder.weights.size();
+        this.items = builder.items.toArray(new Item[0]);
+        this.amounts = builder.amounts.stream().mapToInt(Integer::intValue).toArray();
+        this.start = builder.starts.stream().mapToInt(Integer::intValue).toArray();
+        this.minRolls = builder.minRolls;
+        this.maxRolls = builder.maxRolls;
+        
+        double total = 0;
+        for (double weight : builder.weights) {
+            total += weight;
+        }
+        this.weights = new double[outcomes];
+        for (int i = 0; i < outcomes; i++) {
+            weights[i] = builder.weights.get(i) / total;
+        }
+        
+        // Vose: split scaled weights into under- and overfull columns and pair them up
+        this.chance = new double[outcomes];
+        this.alias = new int[outcomes];
+        double[] scaled = new double[outcomes];
+        int[] small = new int[outcomes];
+        int[] large = new int[outcomes];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < outcomes; i++) {
+            scaled[i] = weights[i] * outcomes;
+            if (scaled[i] < 1.0) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            chance[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] += scaled[less] - 1.0;
+            if (scaled[more] < 1.0) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+        // Whatever is left is full up to rounding
+        while (largeCount > 0) {
+            chance[large[--largeCount]] = 1.0;
+        }
+        while (smallCount > 0) {
+            chance[small[--smallCount]] = 1.0;
+        }
+    }
+    
+    // === Sampling ===
+    
+    /**
+     * Roll one production cycle into the stockpile.
+     * 
+     * @return items produced, including any the stockpile had no room for
+     */
+    public int produce(Random random, Stockpile stockpile) {
+        int rolls = minRolls == maxRolls ? minRolls : minRolls + random.nextInt(maxRolls - minRolls + 1);
+        int produced = 0;
+        for (int roll = 0; roll < rolls; roll++) {
+            int column = random.nextInt(chance.length);
+            int outcome = random.nextDouble() < chance[column] ? column : alias[column];
+            for (int j = start[outcome]; j < start[outcome + 1]; j++) {
+                stockpile.addResource(items[j], amounts[j]);
+                produced += amounts[j];
+            }
+        }
+        return produced;
+    }
+    
+    // === Bulk Access (offline catch-up) ===
+    
+    public int getOutcomeCount() {
+        return weights.length;
+    }
+    
+    public double getWeight(int outcome) {
+        return weights[outcome];
+    }
+    
+    public int getMinRolls() {
+        return minRolls;
+    }
+    
+    public int getMaxRolls() {
+        return maxRolls;
+    }
+    
+    /**
+     * Add the items of {@code times} picks of an outcome to {@code output}.
+     */
+    public void addOutcome(int outcome, long times, Map<Item, Long> output) {
+        if (times <= 0) {
+            return;
+        }
+        for (int j = start[outcome]; j < start[outcome + 1]; j++) {
+            output.merge(items[j], amounts[j] * times, Long::sum);
+        }
+    }
+    
+    static class Builder {
+        private final List<Item> items = new ArrayList<>();
+        private final List<Integer> amounts = new ArrayList<>();
+        private final List<Integer> starts = new ArrayList<>(List.of(0));
+        private final List<Double> weights = new ArrayList<>();
+        private int minRolls = 1;
+        private int maxRolls = 1;
+        
+        Builder rolls(int min, int max) {
+            this.minRolls = min;
+            this.maxRolls = max;
+            return this;
+        }
+        
+        Builder outcome(double weight, Item item, int amount) {
+            items.add(item);
+            amounts.add(amount);
+            return close(weight);
+        }
+        
+        Builder outcome(double weight, Item item, int amount, Item extra, int extraAmount) {
+            items.add(item);
+            amounts.add(amount);
+            items.add(extra);
+            amounts.add(extraAmount);
+            return close(weight);
+        }
+        
+        private Builder close(double weight) {
+            starts.add(items.size());
+            weights.add(weight);
+            return this;
+        }
+        
+        ProductionTable build() {
+            return new ProductionTable(this);
+        }
+    }
+}
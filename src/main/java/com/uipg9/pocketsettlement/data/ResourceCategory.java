@@ -0,0 +1,37 @@
+package com.uipg9.pocketsettlement.data;
+
+import net.minecraft.world.item.Item;
+import net.minecraft.world.item.Items;
+
+/**
+ * Stockpile categories. An item belongs to the category of the building
+ * definition that produces it (see {@link BuildingDefinitions}); anything
+ * else, like items deposited by players, is misc.
+ */
+public enum ResourceCategory {
+    CROPS("Crops", Items.WHEAT),
+    ORES("Ores", Items.RAW_IRON),
+    WOOD("Wood", Items.OAK_LOG),
+    ANIMAL_PRODUCTS("Animal Products", Items.LEATHER),
+    MISC("Misc", Items.CHEST);
+    
+    private final String displayName;
+    private final Item iconItem;
+    
+    ResourceCategory(String displayName, Item iconItem) {
+        this.displayName = displayName;
+        this.iconItem = iconItem;
+    }
+    
+    public String getDisplayName() {
+        return displayName;
+    }
+    
+    public Item getIconItem() {
+        return iconItem;
+    }
+    
+    public static ResourceCategory of(Item item) {
+        return BuildingDefinitions.getCategory(item);
+    }
+}
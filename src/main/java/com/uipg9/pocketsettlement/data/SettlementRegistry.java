@@ -0,0 +1,352 @@
+package com.uipg9.pocketsettlement.data;
+
+import com.mojang.serialization.Codec;
+import com.uipg9.pocketsettlement.PocketSettlement;
+import com.uipg9.pocketsettlement.SettlementConfig;
+import com.uipg9.pocketsettlement.persistence.SettlementPersistence;
+import com.uipg9.pocketsettlement.persistence.SettlementStore;
+import com.uipg9.pocketsettlement.tick.OfflineProduction;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.StringTag;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.saveddata.SavedData;
+import net.minecraft.world.level.saveddata.SavedDataType;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Every player owns their own settlement. The registry keeps track of who has
+ * one and which settlements are currently in memory.
+ * 
+ * A settlement is loaded from its region file and journal folder
+ * (data/pocketsettlement/<owner>/) on first access, and unloaded again once its owner has been offline for
+ * {@link SettlementConfig#idleUnloadTicks}. Only loaded settlements are ticked
+ * and saved, so memory and save cost follow the players who are online. A
+ * settlement catches up on the production it missed when it is loaded again
+ * (see {@link OfflineProduction}).
+ * 
+ * A known owner whose settlement cannot be read is never given a new one in
+ * its place: that would overwrite the files on the next snapshot. They get a
+ * blank stand-in that is never saved, and loading is tried again after
+ * {@link #LOAD_RETRY_TICKS}.
+ * 
+ * The registry itself is vanilla saved data holding the list of owners. Vanilla
+ * autosave encoding it is what snapshots the dirty loaded settlements.
+ */
+public class SettlementRegistry extends SavedData {
+    
+    /** Same id the single shared settlement used, so old worlds are recognised. */
+    private static final String DATA_NAME = PocketSettlement.MOD_ID;
+    
+    private static final int UNLOAD_CHECK_INTERVAL = 200;  // 10 seconds
+    private static final int LOAD_RETRY_TICKS = 200;  // 10 seconds
+    
+    public static final Codec<SettlementRegistry> CODEC = CompoundTag.CODEC.xmap(SettlementRegistry::load, SettlementRegistry::snapshot);
+    
+    public static final SavedDataType<SettlementRegistry> TYPE = new SavedDataType<>(
+        DATA_NAME, SettlementRegistry::new, CODEC, null
+    );
+    
+    /**
+     * A settlement that is in memory, with the store it saves to.
+     */
+    private static class Loaded {
+        final SettlementState state;
+        final SettlementStore store;
+        int lastAccessTick;
+        
+        Loaded(SettlementState state, SettlementStore store) {
+            this.state = state;
+            this.store = store;
+        }
+    }
+    
+    private final Set<UUID> owners = new HashSet<>();
+    private final Map<UUID, Loaded> loaded = new HashMap<>();
+    
+    /**
+     * Stand-in for a settlement that failed to load, and when it failed.
+     */
+    private record Unavailable(SettlementState placeholder, int failedTick) {}
+    
+    private final Map<UUID, Unavailable> unavailable = new HashMap<>();
+    
+    // Settlement from before per-player settlements, given to the first player who asks
+    private boolean legacyClaimed;
+    private CompoundTag legacyInline;
+    private SettlementStore legacyStore;
+    
+    private MinecraftServer server;
+    private int unloadCheckCounter = 0;
+    
+    // === Access ===
+    
+    public static SettlementRegistry get(MinecraftServer server) {
+        SettlementRegistry registry = server.overworld().getDataStorage().computeIfAbsent(TYPE);
+        registry.server = server;
+        return registry;
+    }
+    
+    /**
+     * Get a player's settlement, loading or creating it on first access. If
+     * their settlement exists but cannot be read, this is an unsaved
+     * stand-in, see {@link #isUnavailable}.
+     */
+    public SettlementState getSettlement(UUID owner) {
+        Loaded entry = loaded.get(owner);
+        if (entry == null) {
+            Unavailable failed = unavailable.get(owner);
+            if (failed != null && server.getTickCount() - failed.failedTick() < LOAD_RETRY_TICKS) {
+                return failed.placeholder();
+            }
+            entry = loadOrCreate(owner);
+            if (entry == null) {
+                SettlementState placeholder = failed != null ? failed.placeholder() : new SettlementState();
+                unavailable.put(owner, new Unavailable(placeholder, server.getTickCount()));
+                return placeholder;
+            }
+            unavailable.remove(owner);
+            loaded.put(owner, entry);
+        }
+        entry.lastAccessTick = server.getTickCount();
+        return entry.state;
+    }
+    
+    /**
+     * @return the settlements currently in memory; the simulation only ticks these
+     */
+    public Collection<SettlementState> getLoadedSettlements() {
+        List<SettlementState> states = new ArrayList<>(loaded.size());
+        for (Loaded entry : loaded.values()) {
+            states.add(entry.state);
+        }
+        return states;
+    }
+    
+    /**
+     * Run {@code action} for every settlement currently in memory. The action
+     * must not load or unload settlements.
+     */
+    public void forEachLoaded(BiConsumer<UUID, SettlementState> action) {
+        for (Map.Entry<UUID, Loaded> entry : loaded.entrySet()) {
+            action.accept(entry.getKey(), entry.getValue().state);
+        }
+    }
+    
+    /**
+     * @return true if the owner's settlement exists but could not be read,
+     *         so {@link #getSettlement} hands out a stand-in that is not saved
+     */
+    public boolean isUnavailable(UUID owner) {
+        return !loaded.containsKey(owner) && unavailable.containsKey(owner);
+    }
+    
+    public int getLoadedCount() {
+        return loaded.size();
+    }
+    
+    public int getOwnerCount() {
+        return owners.size();
+    }
+    
+    public SettlementStore getStore(UUID owner) {
+        Loaded entry = loaded.get(owner);
+        return entry == null ? null : entry.store;
+    }
+    
+    // === Loading ===
+    
+    /**
+     * @return the loaded settlement, or null if the owner has one that could
+     *         not be read; nothing is created or written for them then
+     */
+    private Loaded loadOrCreate(UUID owner) {
+        SettlementStore store = new SettlementStore(owner, SettlementPersistence.getDataFolder(server).resolve(owner.toString()));
+        SettlementState state;
+        try {
+            state = store.load();
+        } catch (IOException e) {
+            PocketSettlement.LOGGER.error("[Pocket Settlement] Settlement of {} could not be read; its files are left untouched and it is not saved until a load succeeds", owner, e);
+            return null;
+        }
+        
+        if (state == null && owners.contains(owner)) {
+            PocketSettlement.LOGGER.error("[Pocket Settlement] Settlement of {} is registered but has no snapshot; its files are left untouched and it is not saved until a load succeeds", owner);
+            return null;
+        }
+        
+        if (state == null) {
+            SettlementState legacy = claimLegacy();
+            state = legacy != null ? legacy : new SettlementState();
+            store.attachFresh(state);
+            
+            if (legacy != null) {
+                // Make sure the claimed settlement is on disk before the shared files are retired
+                store.snapshot(state).join();
+                retireLegacy();
+                PocketSettlement.LOGGER.info("[Pocket Settlement] Shared settlement claimed by {}", owner);
+            } else {
+                state.setDirty();
+            }
+            
+            owners.add(owner);
+            setDirty();
+        } else {
+            // Production missed while unloaded or while the server was down
+            long cycles = OfflineProduction.catchUp(state, System.currentTimeMillis());
+            if (cycles > 0) {
+                PocketSettlement.LOGGER.info("[Pocket Settlement] Caught up {} production cycles for {}", cycles, owner);
+            }
+        }
+        
+        SettlementPersistence.metrics().recordLoad();
+        return new Loaded(state, store);
+    }
+    
+    /**
+     * Find the settlement that was shared by everyone before settlements
+     * belonged to players. Looks at the inline saved data, then the shared
+     * snapshot slots, then the pre-SavedData save file.
+     */
+    private SettlementState claimLegacy() {
+        if (legacyClaimed) {
+            return null;
+        }
+        legacyClaimed = true;
+        setDirty();
+        
+        if (legacyInline != null) {
+            return SettlementState.load(legacyInline);
+        }
+        
+        SettlementStore store = new SettlementStore(null, SettlementPersistence.getDataFolder(server));
+        SettlementState state;
+        try {
+            state = store.load();
+        } catch (IOException e) {
+            // Left in place and not retired
+            PocketSettlement.LOGGER.error("[Pocket Settlement] Shared settlement could not be read, not claiming it", e);
+            return null;
+        }
+        if (state != null) {
+            legacyStore = store;
+            return state;
+        }
+        return SettlementPersistence.migrateLegacyFile(server);
+    }
+    
+    private void retireLegacy() {
+        legacyInline = null;
+        if (legacyStore != null) {
+            legacyStore.retire();
+            legacyStore = null;
+        }
+    }
+    
+    // === Ticking & Unloading ===
+    
+    /**
+     * Publish stockpile changes, flush journals, compact the ones that grew
+     * too large, and unload idle settlements. Called at the end of every
+     * server tick.
+     */
+    public void tick() {
+        boolean anyDirty = false;
+        for (Loaded entry : loaded.values()) {
+            entry.state.getStockpile().publishChanges();
+            if (entry.store.tick()) {
+                SettlementPersistence.metrics().recordCompaction();
+                entry.store.snapshot(entry.state);
+            }
+            anyDirty |= entry.state.isDirty();
+        }
+        
+        // Let the next vanilla autosave snapshot settlements with unjournaled changes
+        if (anyDirty) {
+            setDirty();
+        }
+        
+        unloadCheckCounter++;
+        if (unloadCheckCounter >= UNLOAD_CHECK_INTERVAL) {
+            unloadCheckCounter = 0;
+            unloadIdle();
+        }
+    }
+    
+    private void unloadIdle() {
+        int now = server.getTickCount();
+        Iterator<Map.Entry<UUID, Loaded>> it = loaded.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<UUID, Loaded> mapEntry = it.next();
+            Loaded entry = mapEntry.getValue();
+            
+            boolean ownerOnline = server.getPlayerList().getPlayer(mapEntry.getKey()) != null;
+            if (ownerOnline || now - entry.lastAccessTick < SettlementConfig.idleUnloadTicks) {
+                continue;
+            }
+            
+            entry.store.snapshot(entry.state);
+            entry.store.close();
+            it.remove();
+            SettlementPersistence.metrics().recordUnload();
+        }
+    }
+    
+    /**
+     * Snapshot and close every loaded settlement. Called when the server stops.
+     */
+    public void unloadAll() {
+        for (Loaded entry : loaded.values()) {
+            entry.store.snapshot(entry.state);
+            entry.store.close();
+        }
+        loaded.clear();
+    }
+    
+    // === Serialization ===
+    
+    private static SettlementRegistry load(CompoundTag nbt) {
+        SettlementRegistry registry = new SettlementRegistry();
+        
+        if (nbt.contains("owners")) {
+            ListTag ownerList = nbt.getListOrEmpty("owners");
+            for (int i = 0; i < ownerList.size(); i++) {
+                try {
+                    registry.owners.add(UUID.fromString(ownerList.getStringOr(i, "")));
+                } catch (IllegalArgumentException e) {
+                    PocketSettlement.LOGGER.warn("[Pocket Settlement] Skipping invalid settlement owner in registry");
+                }
+            }
+            registry.legacyClaimed = nbt.getBooleanOr("legacyClaimed", true);
+        } else if (nbt.contains("grid")) {
+            // The shared settlement was stored inline before snapshot slots
+            registry.legacyInline = nbt;
+        }
+        
+        return registry;
+    }
+    
+    /**
+     * Snapshot every dirty loaded settlement, then encode the owner list.
+     * Runs on the server thread whenever vanilla saves the registry.
+     */
+    private CompoundTag snapshot() {
+        for (Loaded entry : loaded.values()) {
+            if (entry.state.isDirty()) {
+                entry.store.snapshot(entry.state);
+            }
+        }
+        
+        CompoundTag nbt = new CompoundTag();
+        ListTag ownerList = new ListTag();
+        for (UUID owner : owners) {
+            ownerList.add(StringTag.valueOf(owner.toString()));
+        }
+        nbt.put("owners", ownerList);
+        nbt.putBoolean("legacyClaimed", legacyClaimed);
+        return nbt;
+    }
+}
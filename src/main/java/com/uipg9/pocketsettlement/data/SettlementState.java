@@ -1,26 +1,32 @@
 package com.uipg9.pocketsettlement.data;
 
 import com.uipg9.pocketsettlement.PocketSettlement;
+import com.uipg9.pocketsettlement.persistence.NbtStreamWriter;
+import com.uipg9.pocketsettlement.persistence.SettlementJournal;
+import com.uipg9.pocketsettlement.persistence.SettlementJournal.Op;
+import com.uipg9.pocketsettlement.persistence.SettlementPersistence;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.ListTag;
-import net.minecraft.nbt.NbtIo;
-import net.minecraft.server.level.ServerLevel;
-import net.minecraft.world.level.saveddata.SavedData;
+import net.minecraft.server.level.ServerPlayer;
 
-import java.io.File;
-import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
  * Main persistent state for the settlement simulation.
  * Saves to the world's data folder and persists across game sessions.
  * 
- * Uses file-based NBT storage for simplicity and compatibility.
+ * Each player owns one settlement, kept by the {@link SettlementRegistry} and
+ * saved to crash-safe snapshot slots by its SettlementStore.
+ * 
+ * Most mutations are appended to a {@link SettlementJournal} instead of
+ * marking the whole state dirty; changes without a journal op (production
+ * progress, XP, happiness, contracts) are picked up by the next snapshot.
  */
-public class SettlementState extends SavedData {
-    
-    private static final String DATA_NAME = PocketSettlement.MOD_ID + "_settlement";
-    private static final Map<ServerLevel, SettlementState> INSTANCES = new HashMap<>();
+public class SettlementState {
     
     // Settlement Grid (7x7 = 49 plots)
     public static final int GRID_SIZE = 7;
@@ -28,6 +34,7 @@ public class SettlementState extends SavedData {
     
     // Citizens
     private Map<String, Citizen> citizens;
+    private final List<Citizen> citizenOrder = new ArrayList<>();  // Same citizens, indexed for the tick
     private int maxCitizens;
     
     // Economy
@@ -40,13 +47,44 @@ public class SettlementState extends SavedData {
     // Tech Tree
     private TechTree techTree;
     
+    // Production completion times, rebuilt on load; not saved
+    private final ProductionSchedule production = new ProductionSchedule(this);
+    
+    // Derived from the grid and kept up to date by every plot change; not saved
+    private final int[] buildingCounts = new int[BuildingType.values().length];
+    private final Object2IntOpenHashMap<String> workplaces = new Object2IntOpenHashMap<>();  // Citizen ID -> plot
+    private int happinessModifier;  // Sum over houses of the happiness their neighbours give
+    
+    // Wall-clock time (ms) the simulation has run up to, 0 if unknown
+    private long simulatedUntil;
+    private long clockJournaled;  // Part of simulatedUntil a replay would restore
+    private static final long CLOCK_JOURNAL_MILLIS = 1000;  // Every step, like the stock it produced
+    private long simulatedTick = -1;  // Server tick the simulation is at, see SettlementTickManager; not saved
+    
     // Stats
     private long totalCoinsEarned;
     private long totalItemsProduced;
     private int daysPlayed;
     
-    // Reference to level for saving
-    private transient ServerLevel level;
+    // Persistence (see SettlementStore)
+    private SettlementJournal journal;
+    private long journalGeneration;  // First journal generation not contained in this snapshot
+    private boolean dirty;
+    
+    // Encoded bytes of each section as of the last snapshot, reused while the section is unchanged
+    private final byte[][] sectionCache = new byte[Section.values().length][];
+    private int changedSections = ALL_SECTIONS;
+    private final ByteArrayOutputStream sectionBuffer = new ByteArrayOutputStream();
+    
+    /**
+     * Parts of the snapshot that are encoded and cached separately. Coins,
+     * influence and the other single values are always written fresh.
+     */
+    public enum Section {
+        GRID, CITIZENS, STOCKPILE, CONTRACTS, TECH
+    }
+    
+    private static final int ALL_SECTIONS = (1 << Section.values().length) - 1;
     
     // === Constructor ===
     
@@ -60,6 +98,8 @@ public class SettlementState extends SavedData {
         
         // Place Town Hall in center
         grid[3][3] = new Building(BuildingType.TOWN_HALL);
+        workplaces.defaultReturnValue(-1);
+        reindex();
         
         this.citizens = new HashMap<>();
         this.maxCitizens = 5;
@@ -77,79 +117,84 @@ public class SettlementState extends SavedData {
         this.daysPlayed = 0;
     }
     
-    // === Static Factory with File-Based Storage ===
+    // === Access ===
     
-    private static File getDataFile(ServerLevel level) {
-        File worldDir = level.getServer().getWorldPath(net.minecraft.world.level.storage.LevelResource.ROOT).toFile();
-        File modDir = new File(worldDir, "data");
-        if (!modDir.exists()) {
-            modDir.mkdirs();
-        }
-        return new File(modDir, DATA_NAME + ".dat");
+    /**
+     * Get the settlement owned by a player, loading it on first access.
+     */
+    public static SettlementState getOrCreate(ServerPlayer player) {
+        return SettlementRegistry.get(player.level().getServer()).getSettlement(player.getUUID());
     }
     
-    public static SettlementState getOrCreate(ServerLevel level) {
-        // Check cache first
-        if (INSTANCES.containsKey(level)) {
-            return INSTANCES.get(level);
-        }
-        
-        // Try to load from file
-        SettlementState state;
-        File dataFile = getDataFile(level);
-        
-        if (dataFile.exists()) {
-            try {
-                CompoundTag nbt = NbtIo.readCompressed(dataFile.toPath(), net.minecraft.nbt.NbtAccounter.unlimitedHeap());
-                state = load(nbt);
-            } catch (IOException e) {
-                PocketSettlement.LOGGER.error("Failed to load settlement data, creating new", e);
-                state = new SettlementState();
-            }
-        } else {
-            state = new SettlementState();
-        }
-        
-        state.level = level;
-        INSTANCES.put(level, state);
-        return state;
+    // === Saving ===
+    
+    /**
+     * Mark the state for the next snapshot, for changes that are not journaled.
+     * Every section is re-encoded; prefer {@link #setDirty(Section)} when the
+     * change is known to stay inside one section.
+     */
+    public void setDirty() {
+        dirty = true;
+        changedSections = ALL_SECTIONS;
+        SettlementPersistence.metrics().recordDirtyMark();
     }
     
-    public void saveToFile() {
-        if (level == null) return;
-        
-        try {
-            File dataFile = getDataFile(level);
-            CompoundTag nbt = save(new CompoundTag());
-            NbtIo.writeCompressed(nbt, dataFile.toPath());
-        } catch (IOException e) {
-            PocketSettlement.LOGGER.error("Failed to save settlement data", e);
-        }
+    public void setDirty(Section section) {
+        dirty = true;
+        markChanged(section);
+        SettlementPersistence.metrics().recordDirtyMark();
     }
     
-    @Override
-    public void setDirty() {
-        super.setDirty();
-        saveToFile();
+    /**
+     * Record that a section changed so the next snapshot re-encodes it,
+     * without asking for a snapshot. Used for the constant simulation changes
+     * (progress, XP, happiness) that ride along with the next snapshot.
+     */
+    public void markChanged(Section section) {
+        changedSections |= 1 << section.ordinal();
+    }
+    
+    public boolean isDirty() {
+        return dirty;
+    }
+    
+    /**
+     * Stream a snapshot that contains every journal generation before
+     * {@code generation}. Called by the settlement's store. Sections that
+     * did not change since the last snapshot are copied from their cached
+     * bytes instead of being encoded again.
+     */
+    public void saveSnapshot(long generation, NbtStreamWriter out) {
+        journalGeneration = generation;
+        clockJournaled = simulatedUntil;
+        dirty = false;
+        write(out, true);
     }
     
     public static SettlementState load(CompoundTag nbt) {
         SettlementState state = new SettlementState();
         
-        // Load grid
-        ListTag gridList = nbt.getListOrEmpty("grid");
-        for (int i = 0; i < gridList.size() && i < GRID_SIZE * GRID_SIZE; i++) {
-            int x = i % GRID_SIZE;
-            int z = i / GRID_SIZE;
-            state.grid[x][z] = Building.fromNBT(gridList.getCompoundOrEmpty(i));
-        }
-        
-        // Load citizens
+        // Load citizens first, the packed grid refers to them by position
         ListTag citizenList = nbt.getListOrEmpty("citizens");
+        List<String> citizenIds = new ArrayList<>(citizenList.size());
         for (int i = 0; i < citizenList.size(); i++) {
             Citizen citizen = Citizen.fromNBT(citizenList.getCompoundOrEmpty(i));
             state.citizens.put(citizen.getId(), citizen);
+            state.citizenOrder.add(citizen);
+            citizenIds.add(citizen.getId());
+        }
+        
+        // Load grid
+        if (nbt.contains(GridCodec.KEY)) {
+            if (!GridCodec.decode(nbt.getCompoundOrEmpty(GridCodec.KEY), state.grid, citizenIds)) {
+                PocketSettlement.LOGGER.warn("[Pocket Settlement] Unreadable settlement grid, falling back to the old layout");
+                GridCodec.decodeLegacy(nbt.getListOrEmpty(GridCodec.LEGACY_KEY), state.grid);
+            }
+        } else {
+            GridCodec.decodeLegacy(nbt.getListOrEmpty(GridCodec.LEGACY_KEY), state.grid);
         }
+        state.reindex();
+        
         state.maxCitizens = nbt.getIntOr("maxCitizens", 5);
         if (state.maxCitizens < 5) state.maxCitizens = 5;
         
@@ -177,25 +222,25 @@ public class SettlementState extends SavedData {
         state.totalItemsProduced = nbt.getLongOr("totalItemsProduced", 0L);
         state.daysPlayed = nbt.getIntOr("daysPlayed", 0);
         
+        state.journalGeneration = nbt.getLongOr("journalGeneration", 0L);
+        state.simulatedUntil = nbt.getLongOr("simulatedUntil", 0L);
+        state.clockJournaled = state.simulatedUntil;
+        
         return state;
     }
     
     public CompoundTag save(CompoundTag nbt) {
-        // Save grid
-        ListTag gridList = new ListTag();
-        for (int z = 0; z < GRID_SIZE; z++) {
-            for (int x = 0; x < GRID_SIZE; x++) {
-                gridList.add(grid[x][z].toNBT());
-            }
-        }
-        nbt.put("grid", gridList);
-        
         // Save citizens
         ListTag citizenList = new ListTag();
+        Map<String, Integer> citizenIndex = new HashMap<>();
         for (Citizen citizen : citizens.values()) {
+            citizenIndex.put(citizen.getId(), citizenList.size());
             citizenList.add(citizen.toNBT());
         }
         nbt.put("citizens", citizenList);
+        
+        // Save grid
+        nbt.put(GridCodec.KEY, GridCodec.encode(grid, citizenIndex));
         nbt.putInt("maxCitizens", maxCitizens);
         
         // Save economy
@@ -218,9 +263,98 @@ public class SettlementState extends SavedData {
         nbt.putLong("totalItemsProduced", totalItemsProduced);
         nbt.putInt("daysPlayed", daysPlayed);
         
+        nbt.putLong("journalGeneration", journalGeneration);
+        nbt.putLong("simulatedUntil", simulatedUntil);
+        
         return nbt;
     }
     
+    /**
+     * Stream the same layout as {@link #save} as a root compound, without
+     * building the tag tree first. Encodes every section.
+     */
+    public void write(NbtStreamWriter out) {
+        write(out, false);
+    }
+    
+    private void write(NbtStreamWriter out, boolean useCache) {
+        if (stockpile.isChanged()) {
+            markChanged(Section.STOCKPILE);
+        }
+        // The grid refers to citizens by their position in the saved list
+        if ((changedSections & 1 << Section.CITIZENS.ordinal()) != 0) {
+            markChanged(Section.GRID);
+        }
+        
+        long reencoded = 0;
+        long reused = 0;
+        out.beginRoot();
+        for (Section section : Section.values()) {
+            byte[] bytes = sectionCache[section.ordinal()];
+            if (!useCache || bytes == null || (changedSections & 1 << section.ordinal()) != 0) {
+                bytes = encodeSection(section);
+                if (useCache) {
+                    sectionCache[section.ordinal()] = bytes;
+                }
+                reencoded += bytes.length;
+            } else {
+                reused += bytes.length;
+            }
+            out.writeRaw(bytes);
+        }
+        if (useCache) {
+            changedSections = 0;
+            stockpile.clearChanged();
+            SettlementPersistence.metrics().recordSections(reencoded, reused);
+        }
+        
+        out.putInt("maxCitizens", maxCitizens);
+        
+        // Save economy
+        out.putInt("coins", coins);
+        out.putInt("influence", influence);
+        out.putLong("lastContractRefresh", lastContractRefresh);
+        
+        // Save stats
+        out.putLong("totalCoinsEarned", totalCoinsEarned);
+        out.putLong("totalItemsProduced", totalItemsProduced);
+        out.putInt("daysPlayed", daysPlayed);
+        
+        out.putLong("journalGeneration", journalGeneration);
+        out.putLong("simulatedUntil", simulatedUntil);
+        
+        out.endCompound();
+    }
+    
+    private byte[] encodeSection(Section section) {
+        sectionBuffer.reset();
+        NbtStreamWriter out = new NbtStreamWriter(new DataOutputStream(sectionBuffer));
+        switch (section) {
+            case GRID -> {
+                Map<String, Integer> citizenIndex = new HashMap<>();
+                for (Citizen citizen : citizens.values()) {
+                    citizenIndex.put(citizen.getId(), citizenIndex.size());
+                }
+                GridCodec.write(out, grid, citizenIndex);
+            }
+            case CITIZENS -> {
+                out.beginList("citizens", NbtStreamWriter.TAG_COMPOUND, citizens.size());
+                for (Citizen citizen : citizens.values()) {
+                    citizen.writeTo(out);
+                }
+            }
+            case STOCKPILE -> stockpile.writeTo(out, "stockpile");
+            case CONTRACTS -> {
+                out.beginList("contracts", NbtStreamWriter.TAG_COMPOUND, activeContracts.size());
+                for (Contract contract : activeContracts) {
+                    contract.writeTo(out);
+                }
+            }
+            case TECH -> techTree.writeTo(out, "techTree");
+        }
+        return sectionBuffer.toByteArray();
+    }
+    
     // === Grid Access ===
     
     public Building getBuilding(int x, int z) {
@@ -234,8 +368,11 @@ public class SettlementState extends SavedData {
         if (x < 0 || x >= GRID_SIZE || z < 0 || z >= GRID_SIZE) {
             return;
         }
+        unindexPlot(x, z);
         grid[x][z] = building;
-        setDirty();
+        indexPlot(x, z);
+        production.invalidate();
+        setDirty(Section.GRID);
     }
     
     public boolean constructBuilding(int x, int z, BuildingType type) {
@@ -249,22 +386,63 @@ public class SettlementState extends SavedData {
             return false;
         }
         
-        coins -= cost;
-        current.setType(type);
-        setDirty();
+        applyConstruct(x, z, type);
+        if (journaled()) journal.logPlot(Op.CONSTRUCT, x, z, type.ordinal());
         return true;
     }
     
+    private void applyConstruct(int x, int z, BuildingType type) {
+        coins -= type.getBaseCost();
+        unindexPlot(x, z);
+        grid[x][z].setType(type);
+        indexPlot(x, z);
+        production.invalidate();
+        markChanged(Section.GRID);
+    }
+    
+    public boolean upgradeBuilding(int x, int z) {
+        Building building = getBuilding(x, z);
+        if (building == null || building.isEmpty() || building.getLevel() >= 5) {
+            return false;
+        }
+        
+        if (coins < building.getType().getUpgradeCost(building.getLevel() + 1)) {
+            return false;
+        }
+        
+        applyUpgrade(x, z);
+        if (journaled()) journal.logPlot(Op.UPGRADE, x, z, 0);
+        return true;
+    }
+    
+    private void applyUpgrade(int x, int z) {
+        Building building = grid[x][z];
+        coins -= building.getType().getUpgradeCost(building.getLevel() + 1);
+        building.upgrade();
+        production.invalidate();
+        markChanged(Section.GRID);
+    }
+    
     public boolean demolishBuilding(int x, int z) {
         Building building = getBuilding(x, z);
         if (building == null || building.isEmpty() || building.getType() == BuildingType.TOWN_HALL) {
             return false;
         }
         
+        applyDemolish(x, z);
+        if (journaled()) journal.logPlot(Op.DEMOLISH, x, z, 0);
+        return true;
+    }
+    
+    private void applyDemolish(int x, int z) {
+        Building building = grid[x][z];
+        
         // Refund 50% of base cost
         int refund = building.getType().getBaseCost() / 2;
         coins += refund;
         
+        unindexPlot(x, z);
+        
         // Unassign any citizen
         if (building.hasWorker()) {
             Citizen citizen = citizens.get(building.getAssignedCitizenId());
@@ -275,10 +453,135 @@ public class SettlementState extends SavedData {
         }
         
         building.setType(BuildingType.EMPTY);
+        indexPlot(x, z);
         building.setLevel(1);
         building.setProgress(0);
-        setDirty();
-        return true;
+        production.invalidate();
+        markChanged(Section.GRID);
+        markChanged(Section.CITIZENS);
+    }
+    
+    /**
+     * Completion times of the producers. Call {@link ProductionSchedule#invalidate()}
+     * after changing a building or worker directly.
+     */
+    public ProductionSchedule getProductionSchedule() {
+        return production;
+    }
+    
+    // === Grid Indexes ===
+    
+    /**
+     * Take a plot out of the building counts, workplace index and happiness
+     * modifier. Every grid mutator calls this before changing a plot and
+     * {@link #indexPlot} after, so the indexes never see half a change.
+     */
+    private void unindexPlot(int x, int z) {
+        Building building = grid[x][z];
+        buildingCounts[building.getType().ordinal()]--;
+        if (building.hasWorker()) {
+            workplaces.removeInt(building.getAssignedCitizenId());
+        }
+        happinessModifier -= getPlotHappiness(x, z);
+    }
+    
+    private void indexPlot(int x, int z) {
+        Building building = grid[x][z];
+        buildingCounts[building.getType().ordinal()]++;
+        if (building.hasWorker()) {
+            workplaces.put(building.getAssignedCitizenId(), x + z * GRID_SIZE);
+        }
+        happinessModifier += getPlotHappiness(x, z);
+    }
+    
+    /**
+     * Rebuild every grid index from scratch, after the whole grid was replaced.
+     */
+    private void reindex() {
+        Arrays.fill(buildingCounts, 0);
+        workplaces.clear();
+        for (int z = 0; z < GRID_SIZE; z++) {
+            for (int x = 0; x < GRID_SIZE; x++) {
+                Building building = grid[x][z];
+                buildingCounts[building.getType().ordinal()]++;
+                if (building.hasWorker()) {
+                    // A citizen works one plot; keep the last if a save says otherwise
+                    int previous = workplaces.put(building.getAssignedCitizenId(), x + z * GRID_SIZE);
+                    if (previous >= 0) {
+                        grid[previous % GRID_SIZE][previous / GRID_SIZE].setAssignedCitizenId("");
+                    }
+                }
+            }
+        }
+        happinessModifier = computeHappinessModifier();
+    }
+    
+    /**
+     * @return the plot (x + z * GRID_SIZE) the citizen works at, or -1
+     */
+    public int getWorkplace(String citizenId) {
+        return workplaces.getInt(citizenId);
+    }
+    
+    // === Adjacency ===
+    
+    /**
+     * @return the happiness target offset from houses' neighbours (farms,
+     *         markets and towers are good, quarries bad), see
+     *         {@link BuildingDefinitions#getHouseHappiness}
+     */
+    public int getHappinessModifier() {
+        return happinessModifier;
+    }
+    
+    /**
+     * Sum the happiness modifier over the whole grid. The cached value must
+     * always equal this.
+     */
+    public int computeHappinessModifier() {
+        int modifier = 0;
+        for (int x = 0; x < GRID_SIZE; x++) {
+            for (int z = 0; z < GRID_SIZE; z++) {
+                if (grid[x][z].getType() == BuildingType.HOUSE) {
+                    modifier += getNeighborHappiness(x, z);
+                }
+            }
+        }
+        return modifier;
+    }
+    
+    /**
+     * Part of the happiness modifier that involves a plot: its neighbours if
+     * it is a house, and itself for every house next to it. Subtracted before
+     * the plot changes and added after, which updates the sum in O(1).
+     */
+    private int getPlotHappiness(int x, int z) {
+        int happiness = grid[x][z].getType() == BuildingType.HOUSE ? getNeighborHappiness(x, z) : 0;
+        int own = BuildingDefinitions.getHouseHappiness(grid[x][z].getType());
+        if (z > 0 && grid[x][z - 1].getType() == BuildingType.HOUSE) happiness += own;
+        if (z < GRID_SIZE - 1 && grid[x][z + 1].getType() == BuildingType.HOUSE) happiness += own;
+        if (x < GRID_SIZE - 1 && grid[x + 1][z].getType() == BuildingType.HOUSE) happiness += own;
+        if (x > 0 && grid[x - 1][z].getType() == BuildingType.HOUSE) happiness += own;
+        return happiness;
+    }
+    
+    private int getNeighborHappiness(int x, int z) {
+        int happiness = 0;
+        if (z > 0) happiness += BuildingDefinitions.getHouseHappiness(grid[x][z - 1].getType());
+        if (z < GRID_SIZE - 1) happiness += BuildingDefinitions.getHouseHappiness(grid[x][z + 1].getType());
+        if (x < GRID_SIZE - 1) happiness += BuildingDefinitions.getHouseHappiness(grid[x + 1][z].getType());
+        if (x > 0) happiness += BuildingDefinitions.getHouseHappiness(grid[x - 1][z].getType());
+        return happiness;
+    }
+    
+    /**
+     * Rebuild everything derived from the building definitions after they
+     * were reloaded.
+     */
+    public void refreshDefinitions() {
+        happinessModifier = computeHappinessModifier();
+        production.invalidate();
+        stockpile.reindexCategories();
     }
     
     public List<Building> getAdjacentBuildings(int x, int z) {
@@ -296,14 +599,15 @@ public class SettlementState extends SavedData {
         return adjacent;
     }
     
+    /**
+     * @return how many plots hold {@code type}, or every non-empty plot if
+     *         {@code type} is null
+     */
     public int getBuildingCount(BuildingType type) {
-        int count = 0;
-        for (int x = 0; x < GRID_SIZE; x++) {
-            for (int z = 0; z < GRID_SIZE; z++) {
-                if (grid[x][z].getType() == type) count++;
-            }
+        if (type == null) {
+            return GRID_SIZE * GRID_SIZE - buildingCounts[BuildingType.EMPTY.ordinal()];
         }
-        return count;
+        return buildingCounts[type.ordinal()];
     }
     
     // === Citizen Management ===
@@ -316,6 +620,14 @@ public class SettlementState extends SavedData {
         return citizens.values();
     }
     
+    /**
+     * @return the citizen at {@code index} (0 until {@link #getCitizenCount()}),
+     *         for loops that must not allocate an iterator
+     */
+    public Citizen getCitizenAt(int index) {
+        return citizenOrder.get(index);
+    }
+    
     public int getCitizenCount() {
         return citizens.size();
     }
@@ -331,13 +643,19 @@ public class SettlementState extends SavedData {
     public Citizen recruitCitizen() {
         if (!canRecruitCitizen()) return null;
         
-        coins -= getRecruitmentCost();
         Citizen citizen = new Citizen();
-        citizens.put(citizen.getId(), citizen);
-        setDirty();
+        applyRecruit(citizen);
+        if (journaled()) journal.logRecruit(citizen.getId(), citizen.getName());
         return citizen;
     }
     
+    private void applyRecruit(Citizen citizen) {
+        coins -= getRecruitmentCost();
+        citizens.put(citizen.getId(), citizen);
+        citizenOrder.add(citizen);
+        markChanged(Section.CITIZENS);
+    }
+    
     public boolean assignCitizen(String citizenId, int gridX, int gridZ) {
         Citizen citizen = citizens.get(citizenId);
         Building building = getBuilding(gridX, gridZ);
@@ -346,26 +664,65 @@ public class SettlementState extends SavedData {
             return false;
         }
         
+        applyAssign(citizen, gridX, gridZ);
+        if (journaled()) journal.logAssign(citizenId, gridX, gridZ);
+        return true;
+    }
+    
+    private void applyAssign(Citizen citizen, int gridX, int gridZ) {
+        String citizenId = citizen.getId();
+        Building building = grid[gridX][gridZ];
+        
         // Unassign from previous building if any
-        for (int x = 0; x < GRID_SIZE; x++) {
-            for (int z = 0; z < GRID_SIZE; z++) {
-                Building b = grid[x][z];
-                if (b.getAssignedCitizenId().equals(citizenId)) {
-                    b.setAssignedCitizenId("");
-                }
-            }
+        int previous = workplaces.getInt(citizenId);
+        if (previous >= 0) {
+            int x = previous % GRID_SIZE;
+            int z = previous / GRID_SIZE;
+            unindexPlot(x, z);
+            grid[x][z].setAssignedCitizenId("");
+            indexPlot(x, z);
         }
         
         // Assign to new building
+        unindexPlot(gridX, gridZ);
         building.setAssignedCitizenId(citizenId);
+        indexPlot(gridX, gridZ);
         citizen.setJob(building.getType().getPreferredJob());
-        setDirty();
-        return true;
+        production.invalidate();
+        markChanged(Section.GRID);
+        markChanged(Section.CITIZENS);
+    }
+    
+    /**
+     * Take the worker off a building.
+     */
+    public void unassignCitizen(int x, int z) {
+        Building building = getBuilding(x, z);
+        if (building == null || !building.hasWorker()) {
+            return;
+        }
+        
+        applyUnassign(x, z);
+        if (journaled()) journal.logPlot(Op.UNASSIGN, x, z, 0);
+    }
+    
+    private void applyUnassign(int x, int z) {
+        Building building = grid[x][z];
+        Citizen citizen = citizens.get(building.getAssignedCitizenId());
+        if (citizen != null) {
+            citizen.setJob(CitizenJob.NONE);
+        }
+        unindexPlot(x, z);
+        building.setAssignedCitizenId("");
+        indexPlot(x, z);
+        production.invalidate();
+        markChanged(Section.GRID);
+        markChanged(Section.CITIZENS);
     }
     
     public void increaseMaxCitizens(int amount) {
         maxCitizens += amount;
-        setDirty();
+        if (journaled()) journal.logValue(Op.INCREASE_MAX_CITIZENS, amount);
     }
     
     // === Economy ===
@@ -377,29 +734,49 @@ public class SettlementState extends SavedData {
     public void addCoins(int amount) {
         coins += amount;
         totalCoinsEarned += amount;
-        setDirty();
+        if (journaled()) journal.logValue(Op.ADD_COINS, amount);
     }
     
     public boolean spendCoins(int amount) {
         if (coins < amount) return false;
         coins -= amount;
-        setDirty();
+        if (journaled()) journal.logValue(Op.SPEND_COINS, amount);
         return true;
     }
     
+    /**
+     * Pay for a level of training. The cost and XP are journaled as one record.
+     * @return true if the citizen was trained
+     */
+    public boolean trainCitizen(Citizen citizen, int cost) {
+        if (coins < cost) return false;
+        
+        int xp = citizen.getXpForNextLevel();
+        applyTraining(citizen, cost, xp);
+        if (journaled()) journal.logTraining(citizen.getId(), cost, xp);
+        return true;
+    }
+    
+    private void applyTraining(Citizen citizen, int cost, int xp) {
+        coins -= cost;
+        citizen.addXp(xp);
+        production.invalidate();
+        markChanged(Section.CITIZENS);
+    }
+    
     public int getInfluence() {
         return influence;
     }
     
     public void addInfluence(int amount) {
         influence += amount;
-        setDirty();
+        if (journaled()) journal.logValue(Op.ADD_INFLUENCE, amount);
     }
     
     public boolean spendInfluence(int amount) {
         if (influence < amount) return false;
         influence -= amount;
-        setDirty();
+        if (journaled()) journal.logValue(Op.SPEND_INFLUENCE, amount);
         return true;
     }
     
@@ -425,7 +802,42 @@ public class SettlementState extends SavedData {
         }
         
         lastContractRefresh = worldTime;
-        setDirty();
+        markChanged(Section.CONTRACTS);
+        if (journaled()) journal.logContracts(worldTime, activeContracts);
+    }
+    
+    /**
+     * Deliver items from the stockpile to a contract, paying the reward if it
+     * completes. The removal, delivery and reward are journaled as one record.
+     * @param removeWhenComplete Drop the contract from the board once paid
+     * @return The amount delivered, 0 if the stockpile did not have it
+     */
+    public int deliverContract(Contract contract, int amount, boolean removeWhenComplete) {
+        int accepted = Math.min(amount, contract.getRemainingAmount());
+        if (accepted <= 0 || !stockpile.take(contract.getRequiredItem(), accepted)) return 0;
+        
+        applyDelivery(contract, accepted, removeWhenComplete);
+        if (journaled()) {
+            journal.logText(removeWhenComplete ? Op.FULFILL_CONTRACT : Op.DELIVER_CONTRACT, contract.getId(), accepted);
+        }
+        return accepted;
+    }
+    
+    private void applyDelivery(Contract contract, int amount, boolean removeWhenComplete) {
+        contract.deliver(amount);
+        if (contract.isCompleted()) {
+            coins += contract.getReward();
+            totalCoinsEarned += contract.getReward();
+            if (removeWhenComplete) activeContracts.remove(contract);
+        }
+        markChanged(Section.CONTRACTS);
+    }
+    
+    private Contract findContract(String id) {
+        for (Contract contract : activeContracts) {
+            if (contract.getId().equals(id)) return contract;
+        }
+        return null;
     }
     
     public long getLastContractRefresh() {
@@ -446,7 +858,9 @@ public class SettlementState extends SavedData {
         spendCoins(tech.getCoinCost());
         spendInfluence(tech.getInfluenceCost());
         techTree.unlock(tech);
-        setDirty();
+        production.invalidate();
+        markChanged(Section.TECH);
+        if (journaled()) journal.logText(Op.UNLOCK_TECH, tech.getId(), 0);
         return true;
     }
     
@@ -462,7 +876,7 @@ public class SettlementState extends SavedData {
     
     public void addItemsProduced(int count) {
         totalItemsProduced += count;
-        setDirty();
+        if (journaled()) journal.logValue(Op.ITEMS_PRODUCED, count);
     }
     
     public int getDaysPlayed() {
@@ -471,7 +885,7 @@ public class SettlementState extends SavedData {
     
     public void incrementDaysPlayed() {
         daysPlayed++;
-        setDirty();
+        if (journaled()) journal.logValue(Op.NEW_DAY, 1);
     }
     
     public int getMaxCitizens() {
@@ -498,8 +912,7 @@ public class SettlementState extends SavedData {
         int happiness = getAverageHappiness();
         if (happiness >= 60) {
             int influenceGain = (happiness - 50) / 10;  // 1 influence per 10 happiness above 50
-            influence += influenceGain;
-            setDirty();
+            addInfluence(influenceGain);
         }
     }
     
@@ -515,26 +928,180 @@ public class SettlementState extends SavedData {
         }
         // Place Town Hall in center
         grid[3][3] = new Building(BuildingType.TOWN_HALL);
+        reindex();
         
         // Reset citizens
         citizens.clear();
+        citizenOrder.clear();
         maxCitizens = 5;
         
         // Reset economy
         coins = 500;
         influence = 0;
         stockpile = new Stockpile();
+        stockpile.setJournal(journal);
         activeContracts.clear();
         lastContractRefresh = -1;
         
         // Reset tech tree
         techTree = new TechTree();
+        production.invalidate();
         
         // Reset stats
         totalCoinsEarned = 0;
         totalItemsProduced = 0;
         daysPlayed = 0;
         
+        // Older journal records must not be replayed onto the reset state
         setDirty();
+        if (journal != null) {
+            journal.requestSnapshot();
+        }
+    }
+    
+    // === Simulation Clock ===
+    
+    /**
+     * @return wall-clock time (ms) production has been simulated up to, or 0
+     *         for settlements saved before the clock was kept
+     */
+    public long getSimulatedUntil() {
+        return simulatedUntil;
+    }
+    
+    /**
+     * Record that the simulation has run up to {@code now} (wall-clock ms).
+     * The clock is journaled in whole seconds after every step, in the same
+     * flush as the stock that step added, so a replay after a crash does not
+     * catch up again on production the journal already holds. At most the
+     * sub-second remainder is simulated twice.
+     */
+    public void advanceClock(long now) {
+        if (simulatedUntil <= 0) {
+            simulatedUntil = now;
+            clockJournaled = now;
+            return;
+        }
+        simulatedUntil = now;
+        
+        long seconds = (now - clockJournaled) / 1000;
+        if (seconds * 1000 >= CLOCK_JOURNAL_MILLIS) {
+            clockJournaled += seconds * 1000;
+            if (journal != null) journal.logValue(Op.SIMULATED, (int) Math.min(seconds, Integer.MAX_VALUE));
+        }
+    }
+    
+    /**
+     * @return server tick the settlement was last simulated up to, or -1 if
+     *         it has not been simulated since it loaded
+     */
+    public long getSimulatedTick() {
+        return simulatedTick;
+    }
+    
+    public void setSimulatedTick(long tick) {
+        this.simulatedTick = tick;
+    }
+    
+    // === Journal ===
+    
+    public void attachJournal(SettlementJournal journal) {
+        this.journal = journal;
+        stockpile.setJournal(journal);
+    }
+    
+    public long getJournalGeneration() {
+        return journalGeneration;
+    }
+    
+    /**
+     * Journal the change if a journal is attached. Without one, mark the state
+     * dirty so the change is kept by the next snapshot instead.
+     */
+    private boolean journaled() {
+        if (journal != null) return true;
+        setDirty();
+        return false;
+    }
+    
+    /**
+     * Apply a journal record written by one of the mutators above. Records are
+     * applied as recorded, without re-checking costs or limits.
+     */
+    public void replay(Op op, ByteBuffer in) {
+        switch (op) {
+            case ADD_COINS -> {
+                int amount = in.getInt();
+                coins += amount;
+                totalCoinsEarned += amount;
+            }
+            case SPEND_COINS -> coins -= in.getInt();
+            case ADD_INFLUENCE -> influence += in.getInt();
+            case SPEND_INFLUENCE -> influence -= in.getInt();
+            case CONSTRUCT -> {
+                int x = in.get();
+                int z = in.get();
+                applyConstruct(x, z, BuildingType.values()[in.getInt()]);
+            }
+            case UPGRADE -> applyUpgrade(in.get(), in.get());
+            case DEMOLISH -> applyDemolish(in.get(), in.get());
+            case UNASSIGN -> applyUnassign(in.get(), in.get());
+            case RECRUIT -> {
+                String id = SettlementJournal.readString(in);
+                applyRecruit(new Citizen(id, SettlementJournal.readString(in)));
+            }
+            case ASSIGN -> {
+                Citizen citizen = citizens.get(SettlementJournal.readString(in));
+                if (citizen != null) {
+                    int x = in.get();
+                    int z = in.get();
+                    applyAssign(citizen, x, z);
+                }
+            }
+            case INCREASE_MAX_CITIZENS -> maxCitizens += in.getInt();
+            case UNLOCK_TECH -> {
+                techTree.unlockById(SettlementJournal.readString(in));
+                markChanged(Section.TECH);
+            }
+            case ITEMS_PRODUCED -> totalItemsProduced += in.getInt();
+            case NEW_DAY -> daysPlayed += in.getInt();
+            case STOCK_ADD -> stockpile.replayAdd(SettlementJournal.readString(in), in.getInt());
+            case STOCK_REMOVE -> stockpile.replayRemove(SettlementJournal.readString(in), in.getInt());
+            case NEW_CONTRACTS -> {
+                activeContracts.clear();
+                lastContractRefresh = in.getLong();
+                int count = in.get();
+                for (int i = 0; i < count; i++) {
+                    String id = SettlementJournal.readString(in);
+                    String itemId = SettlementJournal.readString(in);
+                    int amount = in.getInt();
+                    int reward = in.getInt();
+                    activeContracts.add(Contract.restore(id, itemId, amount, reward, in.getLong()));
+                }
+                markChanged(Section.CONTRACTS);
+            }
+            case DELIVER_CONTRACT, FULFILL_CONTRACT -> {
+                Contract contract = findContract(SettlementJournal.readString(in));
+                if (contract != null) {
+                    int amount = in.getInt();
+                    stockpile.replayRemove(contract.getRequiredItemId(), amount);
+                    applyDelivery(contract, amount, op == Op.FULFILL_CONTRACT);
+                }
+            }
+            case TRAIN -> {
+                Citizen citizen = citizens.get(SettlementJournal.readString(in));
+                if (citizen != null) {
+                    int cost = in.getInt();
+                    applyTraining(citizen, cost, in.getInt());
+                }
+            }
+            case SIMULATED -> {
+                long millis = in.getInt() * 1000L;
+                if (simulatedUntil > 0) {
+                    simulatedUntil += millis;
+                    clockJournaled = simulatedUntil;
+                }
+            }
+        }
     }
 }
@@ -1,6 +1,15 @@
 package com.uipg9.pocketsettlement.data;
 
+import com.uipg9.pocketsettlement.persistence.NbtStreamWriter;
+import com.uipg9.pocketsettlement.persistence.SettlementJournal;
+import com.uipg9.pocketsettlement.persistence.SettlementJournal.Op;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.StringTag;
 import net.minecraft.core.registries.BuiltInRegistries;
 import net.minecraft.resources.Identifier;
 import net.minecraft.world.item.Item;
@@ -8,38 +17,110 @@ import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.item.Items;
 import net.minecraft.server.level.ServerPlayer;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Stockpile stores virtual resources produced by buildings.
  * Uses integers instead of ItemStacks for efficient large-scale storage.
+ * 
+ * Counts are kept in a primitive map keyed by the item's raw registry ID,
+ * so adding, removing and counting neither build strings nor box. Raw IDs
+ * change between game versions and mod sets, so only the saves and the
+ * journal use item ID strings: they are saved as a palette of item IDs with
+ * a parallel int array of counts.
+ * 
+ * The capacity is for all items together. A running total makes checking it
+ * O(1). An add that does not fit is accepted up to the free space, and the
+ * rest is lost; the caller gets the amount that went in.
+ * 
+ * Each {@link ResourceCategory} keeps its items sorted by item ID as they
+ * come and go, so screens can page through a category without sorting.
+ * 
+ * Screens and other consumers can {@link #subscribe} to changes instead of
+ * re-reading counts. Changes are coalesced: the first old count of a watched
+ * item is remembered, and once per server tick {@link #publishChanges()}
+ * tells each listener about the items whose count ended up different.
+ * Consumers that only need to redraw once per batch, or that show the
+ * capacity, use a {@link BatchListener} instead.
  */
 public class Stockpile {
-    private Map<String, Integer> resources;  // Item ID -> Count
+    private final Int2IntOpenHashMap resources = new Int2IntOpenHashMap();  // Raw item ID -> Count
+    private final Object2IntOpenHashMap<String> unknown = new Object2IntOpenHashMap<>();  // Unregistered item ID -> Count, kept for the save
     private int maxCapacity;
+    private int totalItems;  // Sum of resources, updated by every change
+    private SettlementJournal journal;  // Set by the owning settlement, not saved
+    private boolean changed = true;  // Since the last snapshot, see SettlementState.Section
+    
+    // Raw item IDs of each category, sorted by item ID
+    private final int[][] categoryItems = new int[ResourceCategory.values().length][];
+    private final int[] categorySizes = new int[ResourceCategory.values().length];
+    
+    // Change listeners, see subscribe(); not saved
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private final Int2IntOpenHashMap watched = new Int2IntOpenHashMap();  // Raw item ID -> Subscriptions watching it
+    private int watchingAll;  // Subscriptions watching every item
+    private Int2IntOpenHashMap pending = new Int2IntOpenHashMap();  // Raw item ID -> Count before this tick's changes
+    private Int2IntOpenHashMap publishing = new Int2IntOpenHashMap();
+    private final List<BatchListener> batchListeners = new ArrayList<>();
+    private int pendingCapacity = -1;  // Capacity before this tick's changes, -1 if unchanged
     
     // Default resource limits
     private static final int DEFAULT_CAPACITY = 1000;
     
+    // Item ID strings for the journal; registry keys are built on every
+    // lookup, and settlements tick in parallel
+    private static final Map<Item, String> ITEM_IDS = new ConcurrentHashMap<>();
+    
+    /**
+     * Told about a stockpiled item whose count changed during the last tick.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        void onChange(Item item, int oldCount, int newCount);
+    }
+    
+    /**
+     * Told once per tick in which any item count or the capacity changed,
+     * after the item listeners.
+     */
+    @FunctionalInterface
+    public interface BatchListener {
+        void onChanges();
+    }
+    
+    private record Subscription(Listener listener, int[] rawIds) {  // rawIds null = every item
+        boolean watches(int rawId) {
+            if (rawIds == null) return true;
+            for (int id : rawIds) {
+                if (id == rawId) return true;
+            }
+            return false;
+        }
+    }
+    
     public Stockpile() {
-        this.resources = new HashMap<>();
         this.maxCapacity = DEFAULT_CAPACITY;
+        Arrays.fill(categoryItems, new int[0]);
     }
     
     // === Resource Management ===
     
     /**
-     * Add resources to the stockpile.
+     * Add resources to the stockpile, as many as there is room for.
      * @return The amount actually added (may be less if capacity reached)
      */
     public int addResource(Item item, int amount) {
-        String itemId = getItemId(item);
-        int current = resources.getOrDefault(itemId, 0);
-        int toAdd = Math.min(amount, maxCapacity - current);
+        int toAdd = Math.max(0, Math.min(amount, maxCapacity - totalItems));  // May already be over capacity
         
         if (toAdd > 0) {
-            resources.put(itemId, current + toAdd);
+            increase(getRawId(item), toAdd);
+            changed = true;
+            if (journal != null) journal.logText(Op.STOCK_ADD, getItemId(item), toAdd);
         }
         
         return toAdd;
@@ -50,27 +131,310 @@ public class Stockpile {
      * @return true if successful, false if not enough resources
      */
     public boolean removeResource(Item item, int amount) {
-        String itemId = getItemId(item);
-        int current = resources.getOrDefault(itemId, 0);
+        if (take(item, amount)) {
+            if (journal != null) journal.logText(Op.STOCK_REMOVE, getItemId(item), amount);
+            return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Remove resources without journaling, for settlement actions that
+     * journal the removal as part of their own record.
+     */
+    boolean take(Item item, int amount) {
+        int rawId = getRawId(item);
+        int current = resources.get(rawId);
         
         if (current >= amount) {
-            int newAmount = current - amount;
-            if (newAmount <= 0) {
-                resources.remove(itemId);
+            applyRemove(rawId, current, amount);
+            return true;
+        }
+        
+        return false;
+    }
+    
+    private void applyRemove(int rawId, int current, int amount) {
+        noteChange(rawId);
+        changed = true;
+        int newAmount = current - amount;
+        if (newAmount <= 0) {
+            resources.remove(rawId);
+            unindexItem(rawId);
+            totalItems -= current;
+        } else {
+            resources.put(rawId, newAmount);
+            totalItems -= amount;
+        }
+    }
+    
+    // === Transactions ===
+    
+    /**
+     * Start a batch of inserts and extracts that is applied all at once or
+     * not at all, see {@link StockpileTransaction}.
+     */
+    public StockpileTransaction transaction() {
+        return new StockpileTransaction(this);
+    }
+    
+    /**
+     * Validate a transaction's net changes once, then apply them in one pass.
+     */
+    boolean apply(Object2IntMap<Item> changes, int netItems) {
+        if (netItems > 0 && totalItems + netItems > maxCapacity) {
+            return false;
+        }
+        for (Object2IntMap.Entry<Item> change : changes.object2IntEntrySet()) {
+            if (change.getIntValue() < 0 && resources.get(getRawId(change.getKey())) < -change.getIntValue()) {
+                return false;
+            }
+        }
+        
+        for (Object2IntMap.Entry<Item> change : changes.object2IntEntrySet()) {
+            int rawId = getRawId(change.getKey());
+            int amount = change.getIntValue();
+            if (amount > 0) {
+                increase(rawId, amount);
+                if (journal != null) journal.logText(Op.STOCK_ADD, getItemId(change.getKey()), amount);
+            } else if (amount < 0) {
+                applyRemove(rawId, resources.get(rawId), -amount);
+                if (journal != null) journal.logText(Op.STOCK_REMOVE, getItemId(change.getKey()), -amount);
+            }
+        }
+        changed = true;
+        return true;
+    }
+    
+    private void increase(int rawId, int amount) {
+        noteChange(rawId);
+        if (resources.addTo(rawId, amount) == 0) {
+            indexItem(rawId);
+        }
+        totalItems += amount;
+    }
+    
+    // === Change Events ===
+    
+    /**
+     * Listen to changes of the given items, or of every item if none are
+     * given. Listeners run on the server thread at the end of the tick.
+     */
+    public void subscribe(Listener listener, Item... items) {
+        int[] rawIds = null;
+        if (items.length > 0) {
+            rawIds = new int[items.length];
+            for (int i = 0; i < items.length; i++) {
+                rawIds[i] = getRawId(items[i]);
+                watched.addTo(rawIds[i], 1);
+            }
+        } else {
+            watchingAll++;
+        }
+        subscriptions.add(new Subscription(listener, rawIds));
+    }
+    
+    /**
+     * Stop telling {@code listener} about changes, for every subscription it has.
+     */
+    public void unsubscribe(Listener listener) {
+        subscriptions.removeIf(subscription -> {
+            if (subscription.listener() != listener) return false;
+            if (subscription.rawIds() == null) {
+                watchingAll--;
             } else {
-                resources.put(itemId, newAmount);
+                for (int rawId : subscription.rawIds()) {
+                    if (watched.addTo(rawId, -1) == 1) {
+                        watched.remove(rawId);
+                    }
+                }
             }
             return true;
+        });
+    }
+    
+    /**
+     * Be told once per tick that anything changed, see {@link BatchListener}.
+     * Watches every item.
+     */
+    public void subscribeBatch(BatchListener listener) {
+        batchListeners.add(listener);
+        watchingAll++;
+    }
+    
+    public void unsubscribeBatch(BatchListener listener) {
+        if (batchListeners.remove(listener)) {
+            watchingAll--;
+        }
+    }
+    
+    /**
+     * Remember a watched item's count before its first change this tick.
+     * Called before every change; costs a lookup when nothing is watched.
+     */
+    private void noteChange(int rawId) {
+        if ((watchingAll > 0 || watched.containsKey(rawId)) && !pending.containsKey(rawId)) {
+            pending.put(rawId, resources.get(rawId));
+        }
+    }
+    
+    private void noteCapacityChange() {
+        if (pendingCapacity < 0) {
+            pendingCapacity = maxCapacity;
+        }
+    }
+    
+    /**
+     * Tell the listeners about every watched item whose count changed since
+     * the last call, then the batch listeners if anything changed. Called
+     * once per server tick by the registry.
+     */
+    public void publishChanges() {
+        boolean changedAny = pendingCapacity >= 0 && pendingCapacity != maxCapacity;
+        pendingCapacity = -1;
+        if (pending.isEmpty() && !changedAny) {
+            return;
         }
         
-        return false;
+        // Swap batches, so listeners may change the stockpile again
+        Int2IntOpenHashMap batch = pending;
+        pending = publishing;
+        publishing = batch;
+        
+        // Copy, so listeners may unsubscribe (a screen closing)
+        List<Subscription> listeners = List.copyOf(subscriptions);
+        for (Int2IntMap.Entry entry : batch.int2IntEntrySet()) {
+            int rawId = entry.getIntKey();
+            int oldCount = entry.getIntValue();
+            int newCount = resources.get(rawId);
+            if (oldCount == newCount) {
+                continue;
+            }
+            changedAny = true;
+            Item item = BuiltInRegistries.ITEM.byId(rawId);
+            for (Subscription subscription : listeners) {
+                if (subscription.watches(rawId)) {
+                    subscription.listener().onChange(item, oldCount, newCount);
+                }
+            }
+        }
+        batch.clear();
+        
+        if (changedAny) {
+            for (BatchListener listener : List.copyOf(batchListeners)) {
+                listener.onChanges();
+            }
+        }
+    }
+    
+    // === Categories ===
+    
+    public int getCategorySize(ResourceCategory category) {
+        return categorySizes[category.ordinal()];
+    }
+    
+    /**
+     * @return the {@code index}th item of a category in item ID order
+     */
+    public Item getCategoryItem(ResourceCategory category, int index) {
+        return BuiltInRegistries.ITEM.byId(categoryItems[category.ordinal()][index]);
+    }
+    
+    /**
+     * File every item again, after the building definitions that decide the
+     * categories were reloaded.
+     */
+    void reindexCategories() {
+        Arrays.fill(categorySizes, 0);
+        for (int rawId : resources.keySet().toIntArray()) {
+            indexItem(rawId);
+        }
+    }
+    
+    private void indexItem(int rawId) {
+        int category = ResourceCategory.of(BuiltInRegistries.ITEM.byId(rawId)).ordinal();
+        int size = categorySizes[category];
+        int[] items = categoryItems[category];
+        if (size == items.length) {
+            items = categoryItems[category] = Arrays.copyOf(items, Math.max(8, size * 2));
+        }
+        int at = findSlot(items, size, rawId);
+        System.arraycopy(items, at, items, at + 1, size - at);
+        items[at] = rawId;
+        categorySizes[category]++;
+    }
+    
+    private void unindexItem(int rawId) {
+        int category = ResourceCategory.of(BuiltInRegistries.ITEM.byId(rawId)).ordinal();
+        int size = categorySizes[category];
+        int[] items = categoryItems[category];
+        int at = findSlot(items, size, rawId);
+        if (at < size && items[at] == rawId) {
+            System.arraycopy(items, at + 1, items, at, size - at - 1);
+            categorySizes[category]--;
+        }
+    }
+    
+    /**
+     * @return the first position in {@code items} whose item ID is not
+     *         before {@code rawId}'s
+     */
+    private static int findSlot(int[] items, int size, int rawId) {
+        String itemId = getItemId(BuiltInRegistries.ITEM.byId(rawId));
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getItemId(BuiltInRegistries.ITEM.byId(items[middle])).compareTo(itemId) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+    
+    // === Journal ===
+    
+    void setJournal(SettlementJournal journal) {
+        this.journal = journal;
+    }
+    
+    /**
+     * Re-apply a journaled add. The journal holds what fitted at the time,
+     * so the capacity is not checked again.
+     */
+    void replayAdd(String itemId, int amount) {
+        int rawId = getRawId(itemId);
+        if (rawId < 0) {
+            unknown.addTo(itemId, amount);
+        } else {
+            increase(rawId, amount);
+        }
+        changed = true;
+    }
+    
+    void replayRemove(String itemId, int amount) {
+        int rawId = getRawId(itemId);
+        if (rawId >= 0) {
+            applyRemove(rawId, resources.get(rawId), amount);
+        }
+    }
+    
+    boolean isChanged() {
+        return changed;
+    }
+    
+    void clearChanged() {
+        changed = false;
     }
     
     /**
      * Get the count of a specific resource.
      */
     public int getResourceCount(Item item) {
-        return resources.getOrDefault(getItemId(item), 0);
+        return resources.get(getRawId(item));
     }
     
     /**
@@ -84,18 +448,18 @@ public class Stockpile {
      * Get total number of items stored.
      */
     public int getTotalItems() {
-        return resources.values().stream().mapToInt(Integer::intValue).sum();
+        return totalItems;
     }
     
     /**
-     * Get all resources as a map.
+     * Get all resources as a map, by category and then item ID.
      */
     public Map<Item, Integer> getAllResources() {
-        Map<Item, Integer> result = new HashMap<>();
-        for (Map.Entry<String, Integer> entry : resources.entrySet()) {
-            Item item = getItemFromId(entry.getKey());
-            if (item != null && item != Items.AIR) {
-                result.put(item, entry.getValue());
+        Map<Item, Integer> result = new LinkedHashMap<>();
+        for (ResourceCategory category : ResourceCategory.values()) {
+            int[] items = categoryItems[category.ordinal()];
+            for (int i = 0; i < categorySizes[category.ordinal()]; i++) {
+                result.put(BuiltInRegistries.ITEM.byId(items[i]), resources.get(items[i]));
             }
         }
         return result;
@@ -108,19 +472,27 @@ public class Stockpile {
     }
     
     public void setMaxCapacity(int capacity) {
+        noteCapacityChange();
         this.maxCapacity = Math.max(100, capacity);
+        changed = true;
     }
     
     public void upgradeCapacity(int increase) {
+        noteCapacityChange();
         this.maxCapacity += increase;
+        changed = true;
     }
     
     public boolean isFull() {
-        return getTotalItems() >= maxCapacity;
+        return totalItems >= maxCapacity;
     }
     
+    /**
+     * @return free space; 0 when over capacity, as saves from before the
+     *         global limit can be
+     */
     public int getRemainingCapacity() {
-        return Math.max(0, maxCapacity - getTotalItems());
+        return Math.max(0, maxCapacity - totalItems);
     }
     
     // === Withdrawal to Player ===
@@ -158,14 +530,32 @@ public class Stockpile {
     
     // === Helper Methods ===
     
-    private String getItemId(Item item) {
-        return BuiltInRegistries.ITEM.getKey(item).toString();
+    private static int getRawId(Item item) {
+        return BuiltInRegistries.ITEM.getId(item);
+    }
+    
+    /**
+     * @return the raw ID of a saved item ID, or -1 if no such item is registered
+     */
+    private static int getRawId(String itemId) {
+        Item item = getItemFromId(itemId);
+        return item == Items.AIR ? -1 : getRawId(item);
+    }
+    
+    private static String getItemId(Item item) {
+        String id = ITEM_IDS.get(item);
+        if (id == null) {
+            id = BuiltInRegistries.ITEM.getKey(item).toString();
+            ITEM_IDS.put(item, id);
+        }
+        return id;
     }
     
-    private Item getItemFromId(String id) {
+    private static Item getItemFromId(String id) {
         try {
             Identifier loc = Identifier.parse(id);
-            return BuiltInRegistries.ITEM.getValue(loc);
+            Item item = BuiltInRegistries.ITEM.getValue(loc);
+            return item != null ? item : Items.AIR;
         } catch (Exception e) {
             return Items.AIR;
         }
@@ -177,9 +567,60 @@ public class Stockpile {
         CompoundTag nbt = new CompoundTag();
         nbt.putInt("maxCapacity", maxCapacity);
         
+        // Item palette with a parallel array of counts
+        ListTag items = new ListTag();
+        int[] counts = new int[resources.size() + unknown.size()];
+        for (Int2IntMap.Entry entry : resources.int2IntEntrySet()) {
+            counts[items.size()] = entry.getIntValue();
+            items.add(StringTag.valueOf(getItemId(BuiltInRegistries.ITEM.byId(entry.getIntKey()))));
+        }
+        for (Object2IntMap.Entry<String> entry : unknown.object2IntEntrySet()) {
+            counts[items.size()] = entry.getIntValue();
+            items.add(StringTag.valueOf(entry.getKey()));
+        }
+        nbt.put("items", items);
+        nbt.putIntArray("counts", counts);
+        
+        return nbt;
+    }
+    
+    /**
+     * Stream the same entries as {@link #toNBT()} as a named compound.
+     */
+    public void writeTo(NbtStreamWriter out, String name) {
+        out.beginCompound(name);
+        out.putInt("maxCapacity", maxCapacity);
+        
+        int[] counts = new int[resources.size() + unknown.size()];
+        out.beginList("items", NbtStreamWriter.TAG_STRING, counts.length);
+        int i = 0;
+        for (Int2IntMap.Entry entry : resources.int2IntEntrySet()) {
+            counts[i++] = entry.getIntValue();
+            out.listString(getItemId(BuiltInRegistries.ITEM.byId(entry.getIntKey())));
+        }
+        for (Object2IntMap.Entry<String> entry : unknown.object2IntEntrySet()) {
+            counts[i++] = entry.getIntValue();
+            out.listString(entry.getKey());
+        }
+        out.putIntArray("counts", counts);
+        
+        out.endCompound();
+    }
+    
+    /**
+     * Encode the stockpile as the old compound keyed by item ID. Only used to
+     * compare against the palette layout.
+     */
+    public CompoundTag toLegacyNBT() {
+        CompoundTag nbt = new CompoundTag();
+        nbt.putInt("maxCapacity", maxCapacity);
+        
         CompoundTag resourcesNBT = new CompoundTag();
-        for (Map.Entry<String, Integer> entry : resources.entrySet()) {
-            resourcesNBT.putInt(entry.getKey(), entry.getValue());
+        for (Int2IntMap.Entry entry : resources.int2IntEntrySet()) {
+            resourcesNBT.putInt(getItemId(BuiltInRegistries.ITEM.byId(entry.getIntKey())), entry.getIntValue());
+        }
+        for (Object2IntMap.Entry<String> entry : unknown.object2IntEntrySet()) {
+            resourcesNBT.putInt(entry.getKey(), entry.getIntValue());
         }
         nbt.put("resources", resourcesNBT);
         
@@ -191,14 +632,46 @@ public class Stockpile {
         stockpile.maxCapacity = nbt.getIntOr("maxCapacity", DEFAULT_CAPACITY);
         if (stockpile.maxCapacity < 100) stockpile.maxCapacity = DEFAULT_CAPACITY;
         
-        CompoundTag resourcesNBT = nbt.getCompoundOrEmpty("resources");
-        for (String key : resourcesNBT.keySet()) {
-            stockpile.resources.put(key, resourcesNBT.getIntOr(key, 0));
+        if (nbt.contains("items")) {
+            ListTag items = nbt.getListOrEmpty("items");
+            int[] counts = nbt.getIntArray("counts").orElse(new int[0]);
+            int size = Math.min(items.size(), counts.length);
+            for (int i = 0; i < size; i++) {
+                if (counts[i] > 0) {
+                    stockpile.load(items.getStringOr(i, ""), counts[i]);
+                }
+            }
+        } else {
+            // Layout from before the item palette
+            CompoundTag resourcesNBT = nbt.getCompoundOrEmpty("resources");
+            for (String key : resourcesNBT.keySet()) {
+                int count = resourcesNBT.getIntOr(key, 0);
+                if (count > 0) {
+                    stockpile.load(key, count);
+                }
+            }
         }
         
         return stockpile;
     }
     
+    /**
+     * Put a saved count back, keeping items that are no longer registered
+     * (a removed mod) aside so the next save still has them.
+     */
+    private void load(String itemId, int count) {
+        int rawId = getRawId(itemId);
+        if (rawId < 0) {
+            unknown.put(itemId, count);
+        } else {
+            int previous = resources.put(rawId, count);
+            totalItems += count - previous;
+            if (previous == 0) {
+                indexItem(rawId);
+            }
+        }
+    }
+    
     // === Common Resource Presets ===
     
     public static class Resources {
@@ -0,0 +1,67 @@
+package com.uipg9.pocketsettlement.data;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import net.minecraft.world.item.Item;
+
+/**
+ * A batch of stockpile inserts and extracts applied all at once or not at
+ * all. Changes to the same item are netted; {@link #commit()} checks the
+ * capacity and every extract once, then applies the batch in one pass.
+ * 
+ * Usage: {@code stockpile.transaction().insert(a, 5).extract(b, 3).commit()}
+ */
+public class StockpileTransaction {
+    
+    private final Stockpile stockpile;
+    private final Object2IntOpenHashMap<Item> changes = new Object2IntOpenHashMap<>();  // Item -> net change
+    private int netItems;
+    private boolean committed;
+    
+    StockpileTransaction(Stockpile stockpile) {
+        this.stockpile = stockpile;
+    }
+    
+    public StockpileTransaction insert(Item item, int amount) {
+        return change(item, amount);
+    }
+    
+    public StockpileTransaction extract(Item item, int amount) {
+        return change(item, -amount);
+    }
+    
+    private StockpileTransaction change(Item item, int amount) {
+        if (committed) {
+            throw new IllegalStateException("Stockpile transaction already committed");
+        }
+        if (amount != 0) {
+            changes.addTo(item, amount);
+            netItems += amount;
+        }
+        return this;
+    }
+    
+    /**
+     * @return free space left if this transaction were committed now
+     */
+    public int getRemainingCapacity() {
+        return Math.max(0, stockpile.getMaxCapacity() - stockpile.getTotalItems() - netItems);
+    }
+    
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+    
+    /**
+     * Apply every change, or none if an extract is short or the inserts do
+     * not fit.
+     * 
+     * @return true if applied
+     */
+    public boolean commit() {
+        if (committed) {
+            throw new IllegalStateException("Stockpile transaction already committed");
+        }
+        committed = true;
+        return stockpile.apply(changes, netItems);
+    }
+}
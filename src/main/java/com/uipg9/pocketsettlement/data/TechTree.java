@@ -1,5 +1,6 @@
 package com.uipg9.pocketsettlement.data;
 
+import com.uipg9.pocketsettlement.persistence.NbtStreamWriter;
 import net.minecraft.nbt.CompoundTag;
 import net.minecraft.nbt.ListTag;
 import java.util.*;
@@ -9,18 +10,42 @@ import java.util.*;
  * Organized into three branches: Industry, Civics, and Logistics.
  */
 public class TechTree {
-    private Set<String> unlockedTechs;
+    private static final Map<String, TechNode> BY_ID = new HashMap<>();
+    
+    static {
+        for (TechNode tech : TechNode.values()) {
+            BY_ID.put(tech.getId(), tech);
+        }
+    }
+    
+    private Set<String> unlockedTechs;  // Saved as is, so ids of removed techs survive
+    private long unlockedMask;  // Bit per TechNode ordinal
     
     public TechTree() {
         this.unlockedTechs = new HashSet<>();
         // Start with basic techs
-        unlockedTechs.add(TechNode.SETTLEMENT_BASICS.getId());
+        add(TechNode.SETTLEMENT_BASICS.getId());
     }
     
     // === Tech Management ===
     
     public boolean isUnlocked(TechNode tech) {
-        return unlockedTechs.contains(tech.getId());
+        return (unlockedMask & 1L << tech.ordinal()) != 0;
+    }
+    
+    /**
+     * @return the unlocked techs as a bit per {@link TechNode} ordinal
+     */
+    public long getUnlockedMask() {
+        return unlockedMask;
+    }
+    
+    private void add(String techId) {
+        unlockedTechs.add(techId);
+        TechNode tech = BY_ID.get(techId);
+        if (tech != null) {
+            unlockedMask |= 1L << tech.ordinal();
+        }
     }
     
     public boolean canUnlock(TechNode tech, int coins, int influence) {
@@ -37,11 +62,18 @@ public class TechTree {
     }
     
     public boolean unlock(TechNode tech) {
-        if (unlockedTechs.contains(tech.getId())) return false;
-        unlockedTechs.add(tech.getId());
+        if (isUnlocked(tech)) return false;
+        add(tech.getId());
         return true;
     }
     
+    /**
+     * Unlock by id, for journal replay.
+     */
+    void unlockById(String techId) {
+        add(techId);
+    }
+    
     public Set<TechNode> getAvailableTechs(int coins, int influence) {
         Set<TechNode> available = new HashSet<>();
         for (TechNode tech : TechNode.values()) {
@@ -70,21 +102,36 @@ public class TechTree {
         return nbt;
     }
     
+    /**
+     * Stream the same entries as {@link #toNBT()} as a named compound.
+     */
+    public void writeTo(NbtStreamWriter out, String name) {
+        out.beginCompound(name);
+        out.beginList("techs", NbtStreamWriter.TAG_COMPOUND, unlockedTechs.size());
+        for (String techId : unlockedTechs) {
+            out.beginListCompound();
+            out.putString("id", techId);
+            out.endCompound();
+        }
+        out.endCompound();
+    }
+    
     public static TechTree fromNBT(CompoundTag nbt) {
         TechTree tree = new TechTree();
         tree.unlockedTechs.clear();
+        tree.unlockedMask = 0;
         
         ListTag techList = nbt.getListOrEmpty("techs");
         for (int i = 0; i < techList.size(); i++) {
             CompoundTag techNBT = techList.getCompoundOrEmpty(i);
             String techId = techNBT.getStringOr("id", "");
             if (!techId.isEmpty()) {
-                tree.unlockedTechs.add(techId);
+                tree.add(techId);
             }
         }
         
         // Ensure basics are always unlocked
-        tree.unlockedTechs.add(TechNode.SETTLEMENT_BASICS.getId());
+        tree.add(TechNode.SETTLEMENT_BASICS.getId());
         
         return tree;
     }
@@ -26,7 +26,7 @@ public class AssignWorkerScreen extends SimpleGui {
     public AssignWorkerScreen(ServerPlayer player, int gridX, int gridZ) {
         super(MenuType.GENERIC_9x3, player, false);
         this.player = player;
-        this.state = SettlementState.getOrCreate(player.level());
+        this.state = SettlementState.getOrCreate(player);
         this.gridX = gridX;
         this.gridZ = gridZ;
         
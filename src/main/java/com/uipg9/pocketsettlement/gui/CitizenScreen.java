@@ -24,7 +24,7 @@ public class CitizenScreen extends SimpleGui {
     public CitizenScreen(ServerPlayer player) {
         super(MenuType.GENERIC_9x6, player, false);
         this.player = player;
-        this.state = SettlementState.getOrCreate(player.level());
+        this.state = SettlementState.getOrCreate(player);
         
         setupScreen();
     }
@@ -136,11 +136,9 @@ public class CitizenScreen extends SimpleGui {
             builder.addLoreLine(Component.literal(canTrain ? "§eClick to train!" : "§cNeed academy & coins"));
             
             builder.setCallback((index, type, action) -> {
-                if (canTrain && state.spendCoins(trainingCost)) {
-                    boolean leveledUp = citizen.addXp(citizen.getXpForNextLevel());  // Instantly level up
-                    state.setDirty();
-                    
-                    if (leveledUp) {
+                int level = citizen.getLevel();
+                if (canTrain && state.trainCitizen(citizen, trainingCost)) {  // Instantly level up
+                    if (citizen.getLevel() > level) {
                         GuiHelper.playSound(player, SoundEvents.PLAYER_LEVELUP, 1.0f, 1.0f);
                         player.sendSystemMessage(Component.literal("§a✓ " + citizen.getName() + " leveled up to Level " + citizen.getLevel() + "!"));
                     } else {
@@ -20,13 +20,24 @@ public class ContractScreen extends SimpleGui {
     
     private final ServerPlayer player;
     private final SettlementState state;
+    private final Stockpile.Listener stockpileListener = this::onStockpileChange;
     
     public ContractScreen(ServerPlayer player) {
         super(MenuType.GENERIC_9x3, player, false);
         this.player = player;
-        this.state = SettlementState.getOrCreate(player.level());
+        this.state = SettlementState.getOrCreate(player);
         
         setupScreen();
+        
+        // Only the contracts' items matter; with none, nothing does
+        List<Contract> contracts = state.getActiveContracts();
+        if (!contracts.isEmpty()) {
+            Item[] items = new Item[contracts.size()];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = contracts.get(i).getRequiredItem();
+            }
+            state.getStockpile().subscribe(stockpileListener, items);
+        }
     }
     
     public static void open(ServerPlayer player) {
@@ -35,6 +46,11 @@ public class ContractScreen extends SimpleGui {
         screen.open();
     }
     
+    @Override
+    public void onClose() {
+        state.getStockpile().unsubscribe(stockpileListener);
+    }
+    
     private void setupScreen() {
         // Fill background
         GuiElementBuilder bg = new GuiElementBuilder()
@@ -90,6 +106,20 @@ public class ContractScreen extends SimpleGui {
         );
     }
     
+    /**
+     * Redraw the contracts that need {@code item}, whose stockpile count changed.
+     */
+    private void onStockpileChange(Item item, int oldCount, int newCount) {
+        List<Contract> contracts = state.getActiveContracts();
+        int slot = 10;
+        for (int i = 0; i < contracts.size() && slot <= 16; i++) {
+            if (contracts.get(i).getRequiredItem() == item) {
+                this.setSlot(slot, createContractElement(contracts.get(i)));
+            }
+            slot++;
+        }
+    }
+    
     private GuiElementBuilder createContractElement(Contract contract) {
         Item requiredItem = contract.getRequiredItem();
         boolean isCompleted = contract.isCompleted();
@@ -130,12 +160,10 @@ public class ContractScreen extends SimpleGui {
             int available = state.getStockpile().getResourceCount(requiredItem);
             int toDeliver = Math.min(available, contract.getRemainingAmount());
             
-            if (toDeliver > 0 && state.getStockpile().removeResource(requiredItem, toDeliver)) {
-                int accepted = contract.deliver(toDeliver);
-                
+            int accepted = state.deliverContract(contract, toDeliver, false);
+            if (accepted > 0) {
                 if (contract.isCompleted()) {
-                    // Award coins
-                    state.addCoins(contract.getReward());
+                    // Coins were awarded with the delivery
                     GuiHelper.playSound(player, SoundEvents.PLAYER_LEVELUP, 1.0f, 1.0f);
                     player.sendSystemMessage(Component.literal("§a§l✓ CONTRACT COMPLETE! §e+" + contract.getReward() + " coins"));
                 } else {
@@ -143,7 +171,6 @@ public class ContractScreen extends SimpleGui {
                     player.sendSystemMessage(Component.literal("§a✓ Delivered " + accepted + "x " + requiredItem.getName().getString()));
                 }
                 
-                state.setDirty();
                 ContractScreen.open(player);  // Refresh
             } else {
                 GuiHelper.playSound(player, SoundEvents.NOTE_BLOCK_BASS.value(), 1.0f, 0.5f);
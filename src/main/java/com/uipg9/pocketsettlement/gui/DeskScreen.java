@@ -22,16 +22,18 @@ public class DeskScreen extends SimpleGui {
     
     private final ServerPlayer player;
     private final SettlementState state;
+    private final Stockpile.BatchListener stockpileListener = this::setupStockpileButton;
     
     public DeskScreen(ServerPlayer player) {
         super(MenuType.GENERIC_9x6, player, false);
         this.player = player;
-        this.state = SettlementState.getOrCreate(player.level());
+        this.state = SettlementState.getOrCreate(player);
         
         // Play open sound
         player.level().playSound(null, player.blockPosition(), SoundEvents.BOOK_PAGE_TURN, SoundSource.MASTER, 1.0f, 1.0f);
         
         setupScreen();
+        state.getStockpile().subscribeBatch(stockpileListener);
     }
     
     public static void open(ServerPlayer player) {
@@ -40,6 +42,11 @@ public class DeskScreen extends SimpleGui {
         screen.open();
     }
     
+    @Override
+    public void onClose() {
+        state.getStockpile().unsubscribeBatch(stockpileListener);
+    }
+    
     private void setupScreen() {
         // Fill background with parchment-colored glass
         fillBackground();
@@ -140,22 +147,8 @@ public class DeskScreen extends SimpleGui {
             })
         );
         
-        // Stockpile (slot 14)
-        this.setSlot(14, new GuiElementBuilder()
-            .setItem(Items.CHEST)
-            .setName(Component.literal("§6§l📦 Stockpile"))
-            .addLoreLine(Component.literal("§7━━━━━━━━━━━━━━━━━"))
-            .addLoreLine(Component.literal("§fView stored resources"))
-            .addLoreLine(Component.literal("§fand withdraw items."))
-            .addLoreLine(Component.literal(""))
-            .addLoreLine(Component.literal("§7Items: §f" + state.getStockpile().getTotalItems() + "/" + state.getStockpile().getMaxCapacity()))
-            .addLoreLine(Component.literal("§7━━━━━━━━━━━━━━━━━"))
-            .addLoreLine(Component.literal("§eClick to open!"))
-            .setCallback((index, type, action) -> {
-                playClickSound();
-                StockpileScreen.open(player);
-            })
-        );
+        // Stockpile (slot 14), refreshed when the stockpile changes
+        setupStockpileButton();
         
         // Contracts (slot 16)
         this.setSlot(16, new GuiElementBuilder()
@@ -195,6 +188,24 @@ public class DeskScreen extends SimpleGui {
         );
     }
     
+    private void setupStockpileButton() {
+        this.setSlot(14, new GuiElementBuilder()
+            .setItem(Items.CHEST)
+            .setName(Component.literal("§6§l📦 Stockpile"))
+            .addLoreLine(Component.literal("§7━━━━━━━━━━━━━━━━━"))
+            .addLoreLine(Component.literal("§fView stored resources"))
+            .addLoreLine(Component.literal("§fand withdraw items."))
+            .addLoreLine(Component.literal(""))
+            .addLoreLine(Component.literal("§7Items: §f" + state.getStockpile().getTotalItems() + "/" + state.getStockpile().getMaxCapacity()))
+            .addLoreLine(Component.literal("§7━━━━━━━━━━━━━━━━━"))
+            .addLoreLine(Component.literal("§eClick to open!"))
+            .setCallback((index, type, action) -> {
+                playClickSound();
+                StockpileScreen.open(player);
+            })
+        );
+    }
+    
     private void setupGridPreview() {
         // Bottom section: Mini grid preview (3x3 in center)
         // Shows a simplified view of the settlement
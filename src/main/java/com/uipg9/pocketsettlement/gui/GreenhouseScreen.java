@@ -20,16 +20,18 @@ public class GreenhouseScreen extends SimpleGui {
     private final int gridX;
     private final int gridZ;
     private final Building building;
+    private final Stockpile.Listener stockpileListener = (item, oldCount, newCount) -> setupStockpileViews();
     
     public GreenhouseScreen(ServerPlayer player, int gridX, int gridZ) {
         super(MenuType.GENERIC_9x3, player, false);
         this.player = player;
-        this.state = SettlementState.getOrCreate(player.level());
+        this.state = SettlementState.getOrCreate(player);
         this.gridX = gridX;
         this.gridZ = gridZ;
         this.building = state.getBuilding(gridX, gridZ);
         
         setupScreen();
+        state.getStockpile().subscribe(stockpileListener, Items.WHEAT, Items.CARROT, Items.POTATO, Items.BEETROOT, Items.MELON_SLICE, Items.PUMPKIN);
     }
     
     public static void open(ServerPlayer player, int gridX, int gridZ) {
@@ -38,6 +40,11 @@ public class GreenhouseScreen extends SimpleGui {
         screen.open();
     }
     
+    @Override
+    public void onClose() {
+        state.getStockpile().unsubscribe(stockpileListener);
+    }
+    
     private void setupScreen() {
         // Fill background with green theme
         GuiElementBuilder bg = new GuiElementBuilder()
@@ -84,6 +91,11 @@ public class GreenhouseScreen extends SimpleGui {
                 Component.literal("§cAssign a worker to produce!"))
         );
         
+        // Crops and stockpile preview, refreshed when their counts change
+        setupStockpileViews();
+    }
+    
+    private void setupStockpileViews() {
         // Output display - show what can be produced
         this.setSlot(10, createCropDisplay(Items.WHEAT, "Wheat"));
         this.setSlot(11, createCropDisplay(Items.CARROT, "Carrot"));
@@ -25,7 +25,7 @@ public class GridScreen extends SimpleGui {
     public GridScreen(ServerPlayer player) {
         super(MenuType.GENERIC_9x6, player, false);
         this.player = player;
-        this.state = SettlementState.getOrCreate(player.level());
+        this.state = SettlementState.getOrCreate(player);
         
         setupScreen();
     }
@@ -18,16 +18,18 @@ public class LumberYardScreen extends SimpleGui {
     private final int gridX;
     private final int gridZ;
     private final Building building;
+    private final Stockpile.Listener stockpileListener = (item, oldCount, newCount) -> setupStockpilePreview();
     
     public LumberYardScreen(ServerPlayer player, int gridX, int gridZ) {
         super(MenuType.GENERIC_9x3, player, false);
         this.player = player;
-        this.state = SettlementState.getOrCreate(player.level());
+        this.state = SettlementState.getOrCreate(player);
         this.gridX = gridX;
         this.gridZ = gridZ;
         this.building = state.getBuilding(gridX, gridZ);
         
         setupScreen();
+        state.getStockpile().subscribe(stockpileListener, Items.OAK_LOG, Items.OAK_PLANKS, Items.STICK);
     }
     
     public static void open(ServerPlayer player, int gridX, int gridZ) {
@@ -36,6 +38,11 @@ public class LumberYardScreen extends SimpleGui {
         screen.open();
     }
     
+    @Override
+    public void onClose() {
+        state.getStockpile().unsubscribe(stockpileListener);
+    }
+    
     private void setupScreen() {
         // Fill background with brown theme
         GuiElementBuilder bg = new GuiElementBuilder()
@@ -102,6 +109,10 @@ public class LumberYardScreen extends SimpleGui {
         );
         
         // Stockpile preview
+        setupStockpilePreview();
+    }
+    
+    private void setupStockpilePreview() {
         this.setSlot(8, new GuiElementBuilder()
             .setItem(Items.CHEST)
             .setName(Component.literal("§6Quick Stockpile View"))
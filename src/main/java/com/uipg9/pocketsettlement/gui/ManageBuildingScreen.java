@@ -24,7 +24,7 @@ public class ManageBuildingScreen extends SimpleGui {
     public ManageBuildingScreen(ServerPlayer player, int gridX, int gridZ) {
         super(MenuType.GENERIC_9x3, player, false);
         this.player = player;
-        this.state = SettlementState.getOrCreate(player.level());
+        this.state = SettlementState.getOrCreate(player);
         this.gridX = gridX;
         this.gridZ = gridZ;
         this.building = state.getBuilding(gridX, gridZ);
@@ -82,9 +82,7 @@ public class ManageBuildingScreen extends SimpleGui {
                 .addLoreLine(Component.literal("§7━━━━━━━━━━━━━━━━━"))
                 .addLoreLine(Component.literal(canAfford ? "§aClick to upgrade!" : "§cNot enough coins!"))
                 .setCallback((index, type, action) -> {
-                    if (canAfford && state.spendCoins(upgradeCost)) {
-                        building.upgrade();
-                        state.setDirty();
+                    if (canAfford && state.upgradeBuilding(gridX, gridZ)) {
                         GuiHelper.playSound(player, SoundEvents.ANVIL_USE, 1.0f, 1.5f);
                         player.sendSystemMessage(Component.literal("§a✓ Upgraded to Level " + building.getLevel() + "!"));
                         ManageBuildingScreen.open(player, gridX, gridZ);  // Refresh
@@ -117,9 +115,7 @@ public class ManageBuildingScreen extends SimpleGui {
                     .addLoreLine(Component.literal("§7━━━━━━━━━━━━━━━━━"))
                     .addLoreLine(Component.literal("§eClick to unassign"))
                     .setCallback((index, type, action) -> {
-                        building.setAssignedCitizenId("");
-                        if (worker != null) worker.setJob(CitizenJob.NONE);
-                        state.setDirty();
+                        state.unassignCitizen(gridX, gridZ);
                         player.sendSystemMessage(Component.literal("§e✓ Worker unassigned."));
                         ManageBuildingScreen.open(player, gridX, gridZ);
                     })
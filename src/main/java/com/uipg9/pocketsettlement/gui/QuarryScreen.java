@@ -18,16 +18,18 @@ public class QuarryScreen extends SimpleGui {
     private final int gridX;
     private final int gridZ;
     private final Building building;
+    private final Stockpile.Listener stockpileListener = (item, oldCount, newCount) -> setupStockpilePreview();
     
     public QuarryScreen(ServerPlayer player, int gridX, int gridZ) {
         super(MenuType.GENERIC_9x3, player, false);
         this.player = player;
-        this.state = SettlementState.getOrCreate(player.level());
+        this.state = SettlementState.getOrCreate(player);
         this.gridX = gridX;
         this.gridZ = gridZ;
         this.building = state.getBuilding(gridX, gridZ);
         
         setupScreen();
+        state.getStockpile().subscribe(stockpileListener, Items.COBBLESTONE, Items.COAL, Items.RAW_IRON, Items.RAW_GOLD, Items.DIAMOND);
     }
     
     public static void open(ServerPlayer player, int gridX, int gridZ) {
@@ -36,6 +38,11 @@ public class QuarryScreen extends SimpleGui {
         screen.open();
     }
     
+    @Override
+    public void onClose() {
+        state.getStockpile().unsubscribe(stockpileListener);
+    }
+    
     private void setupScreen() {
         // Fill background with gray theme
         GuiElementBuilder bg = new GuiElementBuilder()
@@ -108,6 +115,10 @@ public class QuarryScreen extends SimpleGui {
         );
         
         // Stockpile preview
+        setupStockpilePreview();
+    }
+    
+    private void setupStockpilePreview() {
         this.setSlot(8, new GuiElementBuilder()
             .setItem(Items.CHEST)
             .setName(Component.literal("§6Quick Stockpile View"))
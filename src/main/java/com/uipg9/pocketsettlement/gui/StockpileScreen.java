@@ -12,9 +12,7 @@ import net.minecraft.world.item.Item;
 import net.minecraft.world.item.ItemStack;
 import net.minecraft.world.item.Items;
 
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Stockpile view with withdraw, deposit, sell, and contract tracking.
@@ -25,7 +23,15 @@ public class StockpileScreen extends SimpleGui {
     private final SettlementState state;
     private int currentPage = 0;
     private static final int ITEMS_PER_PAGE = 14;
+    
+    // Content slots (7 columns x 2 rows = 14 items per page)
+    private static final int[] CONTENT_SLOTS = {10, 11, 12, 13, 14, 15, 16, 19, 20, 21, 22, 23, 24, 25};
+    
     private ViewMode mode = ViewMode.RESOURCES;
+    private ResourceCategory category = null;  // null = all categories
+    private final Stockpile.Listener stockpileListener = this::onStockpileChange;
+    private final Stockpile.BatchListener batchListener = this::onStockpileBatch;
+    private boolean layoutChanged;  // An item appeared or ran out in the batch being published
     
     private enum ViewMode {
         RESOURCES, CONTRACTS
@@ -34,9 +40,11 @@ public class StockpileScreen extends SimpleGui {
     public StockpileScreen(ServerPlayer player) {
         super(MenuType.GENERIC_9x6, player, false);
         this.player = player;
-        this.state = SettlementState.getOrCreate(player.level());
+        this.state = SettlementState.getOrCreate(player);
         
         setupScreen();
+        state.getStockpile().subscribe(stockpileListener);
+        state.getStockpile().subscribeBatch(batchListener);
     }
     
     public static void open(ServerPlayer player) {
@@ -45,6 +53,12 @@ public class StockpileScreen extends SimpleGui {
         screen.open();
     }
     
+    @Override
+    public void onClose() {
+        state.getStockpile().unsubscribe(stockpileListener);
+        state.getStockpile().unsubscribeBatch(batchListener);
+    }
+    
     private void setupScreen() {
         // Fill background
         GuiElementBuilder bg = new GuiElementBuilder()
@@ -81,18 +95,7 @@ public class StockpileScreen extends SimpleGui {
         );
         
         // Stockpile info
-        Stockpile stockpile = state.getStockpile();
-        this.setSlot(4, new GuiElementBuilder()
-            .setItem(Items.ENDER_CHEST)
-            .setName(Component.literal("§6§lStockpile & Trading"))
-            .addLoreLine(Component.literal("§7━━━━━━━━━━━━━━━━━"))
-            .addLoreLine(Component.literal("§7Capacity: §f" + stockpile.getTotalItems() + "/" + stockpile.getMaxCapacity()))
-            .addLoreLine(Component.literal("§7Coins: §6" + state.getCoins()))
-            .addLoreLine(Component.literal("§7━━━━━━━━━━━━━━━━━"))
-            .addLoreLine(Component.literal("§fWithdraw: §aLeft-click items"))
-            .addLoreLine(Component.literal("§fDeposit: §aRight-click items"))
-            .addLoreLine(Component.literal("§fSell: §eShift + Right-click"))
-        );
+        setupInfo();
         
         // Deposit all button
         this.setSlot(6, new GuiElementBuilder()
@@ -109,7 +112,6 @@ public class StockpileScreen extends SimpleGui {
                 if (deposited > 0) {
                     GuiHelper.playSound(player, SoundEvents.ITEM_PICKUP, 1.0f, 0.8f);
                     player.sendSystemMessage(Component.literal("§a✓ Deposited " + deposited + " items!"));
-                    state.setDirty();
                     setupScreen();
                 } else {
                     GuiHelper.playSound(player, SoundEvents.NOTE_BLOCK_BASS.value(), 1.0f, 0.5f);
@@ -118,6 +120,28 @@ public class StockpileScreen extends SimpleGui {
             })
         );
         
+        // Category filter (unlocked by Warehouses)
+        if (mode == ViewMode.RESOURCES && state.getTechTree().isUnlocked(TechTree.TechNode.STORAGE_II)) {
+            this.setSlot(8, new GuiElementBuilder()
+                .setItem(category == null ? Items.BOOKSHELF : category.getIconItem())
+                .setName(Component.literal("§b§lCategory: §f" + (category == null ? "All" : category.getDisplayName())))
+                .addLoreLine(Component.literal("§7━━━━━━━━━━━━━━━━━"))
+                .addLoreLine(Component.literal("§7Items: §f" + countResources()))
+                .addLoreLine(Component.literal("§7━━━━━━━━━━━━━━━━━"))
+                .addLoreLine(Component.literal("§eClick to cycle!"))
+                .setCallback((index, type, action) -> {
+                    ResourceCategory[] categories = ResourceCategory.values();
+                    int next = category == null ? 0 : category.ordinal() + 1;
+                    category = next < categories.length ? categories[next] : null;
+                    currentPage = 0;
+                    GuiHelper.playSound(player, SoundEvents.UI_BUTTON_CLICK.value(), 0.5f, 1.0f);
+                    setupScreen();
+                })
+            );
+        } else {
+            category = null;
+        }
+        
         if (mode == ViewMode.RESOURCES) {
             setupResourcesView();
         } else {
@@ -127,46 +151,136 @@ public class StockpileScreen extends SimpleGui {
         setupPagination();
     }
     
+    private void setupInfo() {
+        Stockpile stockpile = state.getStockpile();
+        this.setSlot(4, new GuiElementBuilder()
+            .setItem(Items.ENDER_CHEST)
+            .setName(Component.literal("§6§lStockpile & Trading"))
+            .addLoreLine(Component.literal("§7━━━━━━━━━━━━━━━━━"))
+            .addLoreLine(Component.literal("§7Capacity: §f" + stockpile.getTotalItems() + "/" + stockpile.getMaxCapacity()))
+            .addLoreLine(Component.literal("§7Coins: §6" + state.getCoins()))
+            .addLoreLine(Component.literal("§7━━━━━━━━━━━━━━━━━"))
+            .addLoreLine(Component.literal("§fWithdraw: §aLeft-click items"))
+            .addLoreLine(Component.literal("§fDeposit: §aRight-click items"))
+            .addLoreLine(Component.literal("§fSell: §eShift + Right-click"))
+        );
+    }
+    
     private void setupResourcesView() {
-        Map<Item, Integer> resources = state.getStockpile().getAllResources();
-        List<Map.Entry<Item, Integer>> resourceList = new ArrayList<>(resources.entrySet());
-        
-        // Content slots (7 columns x 2 rows = 14 items per page)
-        int[] contentSlots = {10, 11, 12, 13, 14, 15, 16, 19, 20, 21, 22, 23, 24, 25};
+        Stockpile stockpile = state.getStockpile();
         
         int startIndex = currentPage * ITEMS_PER_PAGE;
+        int totalItems = countResources();
         
-        for (int i = 0; i < contentSlots.length; i++) {
+        for (int i = 0; i < CONTENT_SLOTS.length; i++) {
             int globalIndex = startIndex + i;
             
-            if (globalIndex < resourceList.size()) {
-                Map.Entry<Item, Integer> entry = resourceList.get(globalIndex);
-                this.setSlot(contentSlots[i], createResourceElement(entry.getKey(), entry.getValue()));
+            if (globalIndex < totalItems) {
+                Item item = getResourceAt(globalIndex);
+                this.setSlot(CONTENT_SLOTS[i], createResourceElement(item, stockpile.getResourceCount(item)));
+            }
+        }
+    }
+    
+    /**
+     * Number of stockpiled items shown under the current category filter.
+     */
+    private int countResources() {
+        Stockpile stockpile = state.getStockpile();
+        if (category != null) {
+            return stockpile.getCategorySize(category);
+        }
+        int count = 0;
+        for (ResourceCategory each : ResourceCategory.values()) {
+            count += stockpile.getCategorySize(each);
+        }
+        return count;
+    }
+    
+    /**
+     * The {@code index}th item shown, walking the categories in order.
+     */
+    private Item getResourceAt(int index) {
+        Stockpile stockpile = state.getStockpile();
+        if (category != null) {
+            return stockpile.getCategoryItem(category, index);
+        }
+        for (ResourceCategory each : ResourceCategory.values()) {
+            int size = stockpile.getCategorySize(each);
+            if (index < size) {
+                return stockpile.getCategoryItem(each, index);
             }
+            index -= size;
         }
+        throw new IndexOutOfBoundsException(index);
     }
     
     private void setupContractsView() {
         List<Contract> contracts = state.getActiveContracts();
         
-        // Content slots (7 columns x 2 rows = 14 items per page)
-        int[] contentSlots = {10, 11, 12, 13, 14, 15, 16, 19, 20, 21, 22, 23, 24, 25};
-        
         int startIndex = currentPage * ITEMS_PER_PAGE;
         
-        for (int i = 0; i < contentSlots.length; i++) {
+        for (int i = 0; i < CONTENT_SLOTS.length; i++) {
             int globalIndex = startIndex + i;
             
             if (globalIndex < contracts.size()) {
                 Contract contract = contracts.get(globalIndex);
-                this.setSlot(contentSlots[i], createContractElement(contract, globalIndex));
+                this.setSlot(CONTENT_SLOTS[i], createContractElement(contract, globalIndex));
             }
         }
     }
     
+    /**
+     * Redraw the slot or contract that shows {@code item}. An item that
+     * appeared or ran out moves the others, so the whole view is redrawn
+     * once the batch is through.
+     */
+    private void onStockpileChange(Item item, int oldCount, int newCount) {
+        int startIndex = currentPage * ITEMS_PER_PAGE;
+        
+        if (mode == ViewMode.CONTRACTS) {
+            List<Contract> contracts = state.getActiveContracts();
+            for (int i = 0; i < CONTENT_SLOTS.length && startIndex + i < contracts.size(); i++) {
+                Contract contract = contracts.get(startIndex + i);
+                if (contract.getRequiredItem() == item) {
+                    this.setSlot(CONTENT_SLOTS[i], createContractElement(contract, startIndex + i));
+                }
+            }
+            return;
+        }
+        
+        if (oldCount == 0 || newCount == 0) {
+            layoutChanged = true;
+            return;
+        }
+        if (layoutChanged) {
+            return;
+        }
+        int totalItems = countResources();
+        for (int i = 0; i < CONTENT_SLOTS.length && startIndex + i < totalItems; i++) {
+            if (getResourceAt(startIndex + i) == item) {
+                this.setSlot(CONTENT_SLOTS[i], createResourceElement(item, newCount));
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Once per batch: the capacity, or the whole view if items moved.
+     */
+    private void onStockpileBatch() {
+        if (layoutChanged) {
+            layoutChanged = false;
+            currentPage = Math.min(currentPage, Math.max(0, (countResources() - 1) / ITEMS_PER_PAGE));
+            setupScreen();
+        } else {
+            setupInfo();
+        }
+    }
+    
     private void setupPagination() {
         int totalItems = (mode == ViewMode.RESOURCES) 
-            ? state.getStockpile().getAllResources().size()
+            ? countResources()
             : state.getActiveContracts().size();
         int totalPages = Math.max(1, (int) Math.ceil((double) totalItems / ITEMS_PER_PAGE));
         
@@ -224,13 +338,9 @@ public class StockpileScreen extends SimpleGui {
             builder.addLoreLine(Component.literal("§a✓ Ready to complete!"));
             builder.addLoreLine(Component.literal("§aClick to fulfill!"));
             builder.setCallback((i, type, action) -> {
-                if (state.getStockpile().removeResource(requestedItem, requiredAmount)) {
-                    contract.deliver(requiredAmount);
-                    state.addCoins(contract.getReward());
-                    state.getActiveContracts().remove(contract);
+                if (state.deliverContract(contract, requiredAmount, true) > 0) {
                     GuiHelper.playSound(player, SoundEvents.PLAYER_LEVELUP, 1.0f, 1.2f);
                     player.sendSystemMessage(Component.literal("§a§l✓ Contract completed! +" + contract.getReward() + " coins"));
-                    state.setDirty();
                     setupScreen();
                 }
             });
@@ -242,21 +352,7 @@ public class StockpileScreen extends SimpleGui {
     }
     
     private int depositAllFromPlayer() {
-        int totalDeposited = 0;
-        
-        for (int slot = 0; slot < player.getInventory().getContainerSize(); slot++) {
-            ItemStack stack = player.getInventory().getItem(slot);
-            if (!stack.isEmpty()) {
-                int amount = stack.getCount();
-                int added = state.getStockpile().addResource(stack.getItem(), amount);
-                if (added > 0) {
-                    player.getInventory().removeItem(slot, amount);
-                    totalDeposited += amount;
-                }
-            }
-        }
-        
-        return totalDeposited;
+        return depositFromPlayer(null);
     }
     
     private int getSellPrice(Item item) {
@@ -308,7 +404,6 @@ public class StockpileScreen extends SimpleGui {
                     state.addCoins(coinsEarned);
                     GuiHelper.playSound(player, SoundEvents.EXPERIENCE_ORB_PICKUP, 1.0f, 1.0f);
                     player.sendSystemMessage(Component.literal("§6✓ Sold " + count + "x " + item.getName().getString() + " for " + coinsEarned + " coins!"));
-                    state.setDirty();
                     setupScreen();
                 } else if (type.isRight) {
                     // Right-click: Deposit from inventory
@@ -316,7 +411,6 @@ public class StockpileScreen extends SimpleGui {
                     if (deposited > 0) {
                         GuiHelper.playSound(player, SoundEvents.ITEM_PICKUP, 1.0f, 0.8f);
                         player.sendSystemMessage(Component.literal("§a✓ Deposited " + deposited + "x " + item.getName().getString()));
-                        state.setDirty();
                         setupScreen();
                     } else {
                         GuiHelper.playSound(player, SoundEvents.NOTE_BLOCK_BASS.value(), 1.0f, 0.5f);
@@ -330,7 +424,6 @@ public class StockpileScreen extends SimpleGui {
                     if (withdrawn > 0) {
                         GuiHelper.playSound(player, SoundEvents.ITEM_PICKUP, 1.0f, 1.0f);
                         player.sendSystemMessage(Component.literal("§a✓ Withdrew " + withdrawn + "x " + item.getName().getString()));
-                        state.setDirty();
                         setupScreen();
                     }
                 }
@@ -338,20 +431,35 @@ public class StockpileScreen extends SimpleGui {
     }
     
     private int depositItemFromPlayer(Item item) {
+        return depositFromPlayer(item);
+    }
+    
+    /**
+     * Deposit every whole stack of {@code item} (or of anything, if null)
+     * that fits, as one stockpile transaction. Stacks that do not fit stay in
+     * the inventory.
+     */
+    private int depositFromPlayer(Item item) {
+        StockpileTransaction deposit = state.getStockpile().transaction();
+        int[] slots = new int[player.getInventory().getContainerSize()];
+        int slotCount = 0;
         int totalDeposited = 0;
         
-        for (int slot = 0; slot < player.getInventory().getContainerSize(); slot++) {
+        for (int slot = 0; slot < slots.length; slot++) {
             ItemStack stack = player.getInventory().getItem(slot);
-            if (!stack.isEmpty() && stack.getItem() == item) {
-                int amount = stack.getCount();
-                int added = state.getStockpile().addResource(item, amount);
-                if (added > 0) {
-                    player.getInventory().removeItem(slot, amount);
-                    totalDeposited += amount;
-                }
+            if (!stack.isEmpty() && (item == null || stack.getItem() == item) && stack.getCount() <= deposit.getRemainingCapacity()) {
+                deposit.insert(stack.getItem(), stack.getCount());
+                slots[slotCount++] = slot;
+                totalDeposited += stack.getCount();
             }
         }
         
+        if (deposit.isEmpty() || !deposit.commit()) {
+            return 0;
+        }
+        for (int i = 0; i < slotCount; i++) {
+            player.getInventory().removeItem(slots[i], player.getInventory().getItem(slots[i]).getCount());
+        }
         return totalDeposited;
     }
 }
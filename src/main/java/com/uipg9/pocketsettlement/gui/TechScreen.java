@@ -22,7 +22,7 @@ public class TechScreen extends SimpleGui {
     public TechScreen(ServerPlayer player) {
         super(MenuType.GENERIC_9x6, player, false);
         this.player = player;
-        this.state = SettlementState.getOrCreate(player.level());
+        this.state = SettlementState.getOrCreate(player);
         
         setupScreen();
     }
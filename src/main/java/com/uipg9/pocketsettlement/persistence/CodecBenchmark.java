@@ -0,0 +1,171 @@
+package com.uipg9.pocketsettlement.persistence;
+
+import com.uipg9.pocketsettlement.data.Building;
+import com.uipg9.pocketsettlement.data.Citizen;
+import com.uipg9.pocketsettlement.data.GridCodec;
+import com.uipg9.pocketsettlement.data.SettlementState;
+import com.uipg9.pocketsettlement.data.Stockpile;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.ListTag;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.Tag;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares the old and new NBT layouts of a live settlement: time and heap
+ * allocated to encode, time to decode, and size before and after compression.
+ * Runs on the server thread from /settlement stats codec, on copies of the
+ * settlement's data.
+ */
+public class CodecBenchmark {
+    
+    /**
+     * Averages for one layout. {@code allocatedBytes} is per encode, or -1 if
+     * the JVM does not report thread allocations.
+     */
+    public record Result(String layout, double encodeMicros, long allocatedBytes, double decodeMicros, int rawBytes, int compressedBytes) {}
+    
+    public static List<Result> run(SettlementState state, int rounds) {
+        Building[][] grid = new Building[SettlementState.GRID_SIZE][SettlementState.GRID_SIZE];
+        for (int x = 0; x < SettlementState.GRID_SIZE; x++) {
+            for (int z = 0; z < SettlementState.GRID_SIZE; z++) {
+                grid[x][z] = state.getBuilding(x, z);
+            }
+        }
+        List<String> citizenIds = new ArrayList<>();
+        Map<String, Integer> citizenIndex = new HashMap<>();
+        for (Citizen citizen : state.getAllCitizens()) {
+            citizenIndex.put(citizen.getId(), citizenIds.size());
+            citizenIds.add(citizen.getId());
+        }
+        
+        Building[][] scratch = new Building[SettlementState.GRID_SIZE][SettlementState.GRID_SIZE];
+        List<Result> results = new ArrayList<>();
+        results.add(measure("grid (list)", rounds,
+            () -> GridCodec.encodeLegacy(grid),
+            tag -> GridCodec.decodeLegacy((ListTag) tag, scratch)));
+        results.add(measure("grid (packed)", rounds,
+            () -> GridCodec.encode(grid, citizenIndex),
+            tag -> GridCodec.decode((CompoundTag) tag, scratch, citizenIds)));
+        
+        Stockpile stockpile = state.getStockpile();
+        results.add(measure("stockpile (keyed)", rounds, stockpile::toLegacyNBT, tag -> Stockpile.fromNBT((CompoundTag) tag)));
+        results.add(measure("stockpile (palette)", rounds, stockpile::toNBT, tag -> Stockpile.fromNBT((CompoundTag) tag)));
+        
+        // Whole settlement: tag tree as before streaming, then the streaming writer
+        results.add(measure("settlement (tree)", rounds, () -> state.save(new CompoundTag()), tag -> SettlementState.load((CompoundTag) tag)));
+        results.add(measureStream("settlement (stream)", rounds, state));
+        return results;
+    }
+    
+    /**
+     * @return whether the streaming writer produces the same tags as the tree
+     */
+    public static boolean streamMatchesTree(SettlementState state) {
+        try {
+            CompoundTag streamed = NbtIo.read(new DataInputStream(new ByteArrayInputStream(stream(state))));
+            return state.save(new CompoundTag()).equals(streamed);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+    
+    private static byte[] stream(SettlementState state) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        state.write(new NbtStreamWriter(new DataOutputStream(bytes)));
+        return bytes.toByteArray();
+    }
+    
+    private static Result measureStream(String layout, int rounds, SettlementState state) {
+        byte[] bytes = stream(state);
+        
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            bytes = stream(state);
+        }
+        long encodeNanos = System.nanoTime() - start;
+        allocated = allocated < 0 ? -1 : (allocatedBytes() - allocated) / rounds;
+        
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            try {
+                SettlementState.load(NbtIo.read(new DataInputStream(new ByteArrayInputStream(bytes))));
+            } catch (IOException e) {
+                // In-memory streams do not fail
+            }
+        }
+        long decodeNanos = System.nanoTime() - start;
+        
+        int compressedBytes = 0;
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            // In-memory streams do not fail
+        }
+        compressedBytes = compressed.size();
+        
+        return new Result(layout, encodeNanos / 1000.0 / rounds, allocated, decodeNanos / 1000.0 / rounds, bytes.length, compressedBytes);
+    }
+    
+    /**
+     * @return bytes allocated by this thread so far, or -1 if not supported
+     */
+    public static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemoryEnabled()) {
+            return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+    
+    private static Result measure(String layout, int rounds, Supplier<Tag> encoder, Consumer<Tag> decoder) {
+        Tag tag = encoder.get();
+        
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            tag = encoder.get();
+        }
+        long encodeNanos = System.nanoTime() - start;
+        allocated = allocated < 0 ? -1 : (allocatedBytes() - allocated) / rounds;
+        
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            decoder.accept(tag);
+        }
+        long decodeNanos = System.nanoTime() - start;
+        
+        CompoundTag wrapper = new CompoundTag();
+        wrapper.put("data", tag);
+        int rawBytes = 0;
+        int compressedBytes = 0;
+        try {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            NbtIo.write(wrapper, new DataOutputStream(raw));
+            rawBytes = raw.size();
+            
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            NbtIo.writeCompressed(wrapper, compressed);
+            compressedBytes = compressed.size();
+        } catch (IOException e) {
+            // In-memory streams do not fail
+        }
+        
+        return new Result(layout, encodeNanos / 1000.0 / rounds, allocated, decodeNanos / 1000.0 / rounds, rawBytes, compressedBytes);
+    }
+}
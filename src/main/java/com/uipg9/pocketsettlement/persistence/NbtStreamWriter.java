@@ -0,0 +1,173 @@
+package com.uipg9.pocketsettlement.persistence;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Writes NBT straight to a stream in the binary format of {@code NbtIo.write},
+ * without building a CompoundTag tree first. What it writes reads back with
+ * the normal NbtIo readers.
+ * 
+ * The caller is responsible for the structure: every compound is closed with
+ * {@link #endCompound()}, and a list gets exactly the number of elements it
+ * was opened with. List elements are written with the {@code listX} methods;
+ * a compound element is opened with {@link #beginListCompound()}.
+ * 
+ * IO errors are rethrown as {@link UncheckedIOException}; snapshots are
+ * written to memory, where they do not happen.
+ */
+public class NbtStreamWriter {
+    
+    public static final byte TAG_END = 0;
+    public static final byte TAG_BYTE = 1;
+    public static final byte TAG_INT = 3;
+    public static final byte TAG_LONG = 4;
+    public static final byte TAG_STRING = 8;
+    public static final byte TAG_LIST = 9;
+    public static final byte TAG_COMPOUND = 10;
+    public static final byte TAG_INT_ARRAY = 11;
+    public static final byte TAG_LONG_ARRAY = 12;
+    
+    private final DataOutput out;
+    
+    public NbtStreamWriter(DataOutput out) {
+        this.out = out;
+    }
+    
+    // === Compounds ===
+    
+    /**
+     * Open the unnamed root compound, as {@code NbtIo.write} does.
+     */
+    public void beginRoot() {
+        beginCompound("");
+    }
+    
+    public void beginCompound(String name) {
+        try {
+            out.writeByte(TAG_COMPOUND);
+            out.writeUTF(name);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public void endCompound() {
+        try {
+            out.writeByte(TAG_END);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    // === Named Values ===
+    
+    public void putInt(String name, int value) {
+        try {
+            header(TAG_INT, name);
+            out.writeInt(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public void putLong(String name, long value) {
+        try {
+            header(TAG_LONG, name);
+            out.writeLong(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public void putBoolean(String name, boolean value) {
+        try {
+            header(TAG_BYTE, name);
+            out.writeByte(value ? 1 : 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public void putString(String name, String value) {
+        try {
+            header(TAG_STRING, name);
+            out.writeUTF(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public void putIntArray(String name, int[] values) {
+        try {
+            header(TAG_INT_ARRAY, name);
+            out.writeInt(values.length);
+            for (int value : values) {
+                out.writeInt(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public void putLongArray(String name, long[] values) {
+        try {
+            header(TAG_LONG_ARRAY, name);
+            out.writeInt(values.length);
+            for (long value : values) {
+                out.writeLong(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    // === Lists ===
+    
+    /**
+     * Open a list of {@code size} elements of one tag type. Like vanilla, an
+     * empty list is written with the end tag as its element type.
+     */
+    public void beginList(String name, byte elementType, int size) {
+        try {
+            header(TAG_LIST, name);
+            out.writeByte(size == 0 ? TAG_END : elementType);
+            out.writeInt(size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    public void listString(String value) {
+        try {
+            out.writeUTF(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * Start a compound element of a compound list; list elements have no
+     * header, so this writes nothing. Close it with {@link #endCompound()}.
+     */
+    public void beginListCompound() {
+    }
+    
+    /**
+     * Copy bytes produced by another NbtStreamWriter, such as a cached
+     * named tag, into this stream.
+     */
+    public void writeRaw(byte[] bytes) {
+        try {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private void header(byte type, String name) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(name);
+    }
+}
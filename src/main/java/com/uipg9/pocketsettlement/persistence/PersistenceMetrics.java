@@ -0,0 +1,149 @@
+package com.uipg9.pocketsettlement.persistence;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the settlement save pipeline.
+ * Snapshots are taken on the server thread, writes happen on the IO thread,
+ * so every counter is atomic.
+ */
+public class PersistenceMetrics {
+    private final AtomicLong dirtyMarks = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+    private final AtomicLong totalSnapshotNanos = new AtomicLong();
+    private final AtomicLong maxSnapshotNanos = new AtomicLong();
+    private final AtomicLong lastSnapshotNanos = new AtomicLong();
+    
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong failedWrites = new AtomicLong();
+    private final AtomicLong totalWriteNanos = new AtomicLong();
+    private final AtomicLong maxWriteNanos = new AtomicLong();
+    private final AtomicLong lastWriteNanos = new AtomicLong();
+    private final AtomicLong lastWriteBytes = new AtomicLong();
+    private final AtomicLong corruptSlots = new AtomicLong();
+    
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong unloads = new AtomicLong();
+    
+    private final AtomicLong journalRecords = new AtomicLong();
+    private final AtomicLong journalBytes = new AtomicLong();
+    private final AtomicLong compactions = new AtomicLong();
+    private final AtomicLong replayedRecords = new AtomicLong();
+    
+    private final AtomicLong reencodedBytes = new AtomicLong();
+    private final AtomicLong reusedBytes = new AtomicLong();
+    private final AtomicLong lastReencodedBytes = new AtomicLong();
+    private final AtomicLong lastReusedBytes = new AtomicLong();
+    
+    // === Recording ===
+    
+    public void recordDirtyMark() {
+        dirtyMarks.incrementAndGet();
+    }
+    
+    /**
+     * @param nanos time spent encoding the settlement on the server thread
+     */
+    public void recordSnapshot(long nanos) {
+        snapshots.incrementAndGet();
+        totalSnapshotNanos.addAndGet(nanos);
+        maxSnapshotNanos.accumulateAndGet(nanos, Math::max);
+        lastSnapshotNanos.set(nanos);
+    }
+    
+    /**
+     * @param nanos time spent compressing and writing on the IO thread
+     */
+    public void recordWrite(long nanos, long bytes) {
+        writes.incrementAndGet();
+        totalWriteNanos.addAndGet(nanos);
+        maxWriteNanos.accumulateAndGet(nanos, Math::max);
+        lastWriteNanos.set(nanos);
+        lastWriteBytes.set(bytes);
+    }
+    
+    public void recordFailedWrite() {
+        failedWrites.incrementAndGet();
+    }
+    
+    public void recordCorruptSlot() {
+        corruptSlots.incrementAndGet();
+    }
+    
+    public void recordLoad() {
+        loads.incrementAndGet();
+    }
+    
+    public void recordUnload() {
+        unloads.incrementAndGet();
+    }
+    
+    public void recordJournalAppend(int bytes) {
+        journalRecords.incrementAndGet();
+        journalBytes.addAndGet(bytes);
+    }
+    
+    public void recordCompaction() {
+        compactions.incrementAndGet();
+    }
+    
+    public void recordReplay(int records) {
+        replayedRecords.addAndGet(records);
+    }
+    
+    /**
+     * @param reencoded bytes of changed sections encoded for a snapshot
+     * @param reused bytes of unchanged sections copied from the cache
+     */
+    public void recordSections(long reencoded, long reused) {
+        reencodedBytes.addAndGet(reencoded);
+        reusedBytes.addAndGet(reused);
+        lastReencodedBytes.set(reencoded);
+        lastReusedBytes.set(reused);
+    }
+    
+    // === Reading ===
+    
+    public long getDirtyMarks() { return dirtyMarks.get(); }
+    public long getSnapshots() { return snapshots.get(); }
+    public long getWrites() { return writes.get(); }
+    public long getFailedWrites() { return failedWrites.get(); }
+    public long getLastWriteBytes() { return lastWriteBytes.get(); }
+    public long getCorruptSlots() { return corruptSlots.get(); }
+    public long getLoads() { return loads.get(); }
+    public long getUnloads() { return unloads.get(); }
+    public long getJournalRecords() { return journalRecords.get(); }
+    public long getJournalBytes() { return journalBytes.get(); }
+    public long getCompactions() { return compactions.get(); }
+    public long getReplayedRecords() { return replayedRecords.get(); }
+    public long getReencodedBytes() { return reencodedBytes.get(); }
+    public long getReusedBytes() { return reusedBytes.get(); }
+    public long getLastReencodedBytes() { return lastReencodedBytes.get(); }
+    public long getLastReusedBytes() { return lastReusedBytes.get(); }
+    
+    public double getAverageSnapshotMillis() {
+        long count = snapshots.get();
+        return count == 0 ? 0 : totalSnapshotNanos.get() / (count * 1_000_000.0);
+    }
+    
+    public double getMaxSnapshotMillis() {
+        return maxSnapshotNanos.get() / 1_000_000.0;
+    }
+    
+    public double getLastSnapshotMillis() {
+        return lastSnapshotNanos.get() / 1_000_000.0;
+    }
+    
+    public double getAverageWriteMillis() {
+        long count = writes.get();
+        return count == 0 ? 0 : totalWriteNanos.get() / (count * 1_000_000.0);
+    }
+    
+    public double getMaxWriteMillis() {
+        return maxWriteNanos.get() / 1_000_000.0;
+    }
+    
+    public double getLastWriteMillis() {
+        return lastWriteNanos.get() / 1_000_000.0;
+    }
+}
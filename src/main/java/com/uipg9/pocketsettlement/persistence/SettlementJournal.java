@@ -0,0 +1,459 @@
+package com.uipg9.pocketsettlement.persistence;
+
+import com.uipg9.pocketsettlement.PocketSettlement;
+import com.uipg9.pocketsettlement.data.Contract;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead journal of settlement mutations.
+ * 
+ * Journaled mutations are written as small binary records instead of marking
+ * the whole settlement for re-encoding. Records collect in a buffer and are
+ * appended to the current journal file once per server tick.
+ * 
+ * Every snapshot of the settlement rotates the journal to a new generation and
+ * stores that generation number, so on load only the records the snapshot does
+ * not contain yet are replayed. Files are only deleted once every snapshot
+ * that could still be loaded contains them.
+ * 
+ * File layout: magic, generation, then records of
+ * [u16 length][u8 op][payload][i32 CRC32 of op and payload].
+ * A torn or corrupt record ends the replay of its file.
+ */
+public class SettlementJournal {
+    
+    private static final int MAGIC = 0x50534A31;  // "PSJ1"
+    private static final String FILE_PREFIX = "settlement.";
+    private static final String FILE_SUFFIX = ".journal";
+    private static final int HEADER_BYTES = 12;
+    private static final int INITIAL_BUFFER_BYTES = 8 * 1024;
+    
+    /**
+     * Journaled operations. The ordinal is the on-disk op code, so new
+     * operations must only ever be added at the end.
+     */
+    public enum Op {
+        ADD_COINS,
+        SPEND_COINS,
+        ADD_INFLUENCE,
+        SPEND_INFLUENCE,
+        CONSTRUCT,
+        UPGRADE,
+        DEMOLISH,
+        RECRUIT,
+        ASSIGN,
+        INCREASE_MAX_CITIZENS,
+        UNLOCK_TECH,
+        ITEMS_PRODUCED,
+        NEW_DAY,
+        STOCK_ADD,
+        STOCK_REMOVE,
+        SIMULATED,
+        UNASSIGN,
+        NEW_CONTRACTS,
+        DELIVER_CONTRACT,
+        FULFILL_CONTRACT,
+        TRAIN;
+        
+        private static final Op[] VALUES = values();
+    }
+    
+    /**
+     * Receives replayed records. The payload buffer is positioned after the op code.
+     */
+    public interface Replayer {
+        void replay(Op op, ByteBuffer payload);
+    }
+    
+    private final Path directory;
+    private long generation;
+    private FileChannel channel;
+    private long fileBytes;
+    private int ticksSinceSnapshot;
+    private boolean snapshotRequested;
+    
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+    private final CRC32 crc = new CRC32();
+    private int recordStart = -1;
+    
+    private SettlementJournal(Path directory, long generation) {
+        this.directory = directory;
+        this.generation = generation;
+    }
+    
+    // === Opening ===
+    
+    /**
+     * Replay every journal file from {@code snapshotGeneration} onwards and open
+     * a new journal file after the last one replayed.
+     */
+    public static SettlementJournal openAndReplay(Path directory, long snapshotGeneration, Replayer replayer) {
+        long next = snapshotGeneration;
+        int records = 0;
+        
+        for (long fileGeneration : listGenerations(directory)) {
+            if (fileGeneration < snapshotGeneration) {
+                continue;
+            }
+            records += replayFile(directory.resolve(fileName(fileGeneration)), fileGeneration, replayer);
+            next = fileGeneration + 1;
+        }
+        SettlementPersistence.metrics().recordReplay(records);
+        if (records > 0) {
+            PocketSettlement.LOGGER.info("[Pocket Settlement] Replayed {} journal records on top of the last snapshot", records);
+        }
+        
+        SettlementJournal journal = new SettlementJournal(directory, next);
+        journal.openFile();
+        return journal;
+    }
+    
+    /**
+     * Start a journal for a settlement that was not loaded from a snapshot.
+     * Journal files left behind are not replayed, but are kept until the
+     * first snapshots of the new settlement replace them.
+     */
+    public static SettlementJournal openFresh(Path directory) {
+        List<Long> generations = listGenerations(directory);
+        long next = generations.isEmpty() ? 0 : generations.get(generations.size() - 1) + 1;
+        SettlementJournal journal = new SettlementJournal(directory, next);
+        journal.openFile();
+        return journal;
+    }
+    
+    private void openFile() {
+        Path file = directory.resolve(fileName(generation));
+        try {
+            Files.createDirectories(directory);
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putLong(generation).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            fileBytes = HEADER_BYTES;
+        } catch (IOException e) {
+            // Snapshots still cover everything, so keep running without a journal file
+            PocketSettlement.LOGGER.error("[Pocket Settlement] Failed to open settlement journal {}", file, e);
+            closeChannel();
+        }
+    }
+    
+    // === Appending ===
+    
+    public void logValue(Op op, int value) {
+        begin(op);
+        buffer.putInt(value);
+        end();
+    }
+    
+    public void logPlot(Op op, int x, int z, int value) {
+        begin(op);
+        buffer.put((byte) x).put((byte) z).putInt(value);
+        end();
+    }
+    
+    public void logText(Op op, String text, int value) {
+        begin(op);
+        putString(text);
+        buffer.putInt(value);
+        end();
+    }
+    
+    public void logRecruit(String citizenId, String name) {
+        begin(Op.RECRUIT);
+        putString(citizenId);
+        putString(name);
+        end();
+    }
+    
+    public void logAssign(String citizenId, int x, int z) {
+        begin(Op.ASSIGN);
+        putString(citizenId);
+        buffer.put((byte) x).put((byte) z);
+        end();
+    }
+    
+    public void logContracts(long refreshTime, List<Contract> contracts) {
+        begin(Op.NEW_CONTRACTS);
+        buffer.putLong(refreshTime);
+        buffer.put((byte) contracts.size());
+        for (Contract contract : contracts) {
+            putString(contract.getId());
+            putString(contract.getRequiredItemId());
+            buffer.putInt(contract.getRequiredAmount());
+            buffer.putInt(contract.getReward());
+            buffer.putLong(contract.getExpiresAt());
+        }
+        end();
+    }
+    
+    public void logTraining(String citizenId, int cost, int xp) {
+        begin(Op.TRAIN);
+        putString(citizenId);
+        buffer.putInt(cost).putInt(xp);
+        end();
+    }
+    
+    private void begin(Op op) {
+        ensureCapacity(1024);
+        recordStart = buffer.position();
+        buffer.putShort((short) 0);  // length, filled in by end()
+        buffer.put((byte) op.ordinal());
+    }
+    
+    private void end() {
+        int bodyStart = recordStart + 2;
+        int length = buffer.position() - bodyStart;
+        buffer.putShort(recordStart, (short) length);
+        
+        crc.reset();
+        crc.update(buffer.array(), buffer.arrayOffset() + bodyStart, length);
+        buffer.putInt((int) crc.getValue());
+        
+        SettlementPersistence.metrics().recordJournalAppend(buffer.position() - recordStart);
+        recordStart = -1;
+    }
+    
+    private void putString(String text) {
+        // Item and citizen IDs are ASCII, which is its own UTF-8; skip the byte[]
+        if (isAscii(text)) {
+            ensureCapacity(text.length() + 16);
+            buffer.putShort((short) text.length());
+            for (int i = 0; i < text.length(); i++) {
+                buffer.put((byte) text.charAt(i));
+            }
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(bytes.length + 16);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+    
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private void ensureCapacity(int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+    
+    public static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+    
+    // === Flushing & Rotation ===
+    
+    /**
+     * Called once per server tick.
+     */
+    public void tick() {
+        ticksSinceSnapshot++;
+        flush();
+    }
+    
+    /**
+     * Append buffered records to the journal file.
+     */
+    public void flush() {
+        if (buffer.position() == 0) {
+            return;
+        }
+        
+        buffer.flip();
+        if (channel != null) {
+            try {
+                while (buffer.hasRemaining()) {
+                    fileBytes += channel.write(buffer);
+                }
+            } catch (IOException e) {
+                PocketSettlement.LOGGER.error("[Pocket Settlement] Failed to append to settlement journal, waiting for next snapshot", e);
+                closeChannel();
+                snapshotRequested = true;
+            }
+        }
+        buffer.clear();
+    }
+    
+    /**
+     * Start a new journal generation. Called while the settlement is encoded
+     * for a snapshot, so the returned generation is the first one the snapshot
+     * does not contain.
+     * 
+     * @param keepFrom oldest generation a loadable snapshot may still need;
+     *                 older journal files are deleted
+     */
+    public long rotate(long keepFrom) {
+        flush();
+        if (channel != null) {
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                PocketSettlement.LOGGER.warn("[Pocket Settlement] Failed to sync settlement journal", e);
+            }
+        }
+        closeChannel();
+        
+        for (long fileGeneration : listGenerations(directory)) {
+            if (fileGeneration < keepFrom) {
+                deleteFile(fileGeneration, directory);
+            }
+        }
+        
+        generation++;
+        ticksSinceSnapshot = 0;
+        snapshotRequested = false;
+        openFile();
+        return generation;
+    }
+    
+    public void close() {
+        flush();
+        closeChannel();
+    }
+    
+    private void closeChannel() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            PocketSettlement.LOGGER.warn("[Pocket Settlement] Failed to close settlement journal", e);
+        }
+        channel = null;
+    }
+    
+    // === Compaction ===
+    
+    /**
+     * Ask for a snapshot at the next opportunity, for changes that are not journaled.
+     */
+    public void requestSnapshot() {
+        snapshotRequested = true;
+    }
+    
+    public boolean needsSnapshot(int compactBytes, int intervalTicks) {
+        return snapshotRequested || fileBytes >= compactBytes || ticksSinceSnapshot >= intervalTicks;
+    }
+    
+    public long getGeneration() {
+        return generation;
+    }
+    
+    public long getFileBytes() {
+        return fileBytes;
+    }
+    
+    // === Replay ===
+    
+    private static int replayFile(Path file, long expectedGeneration, Replayer replayer) {
+        ByteBuffer in;
+        try {
+            in = ByteBuffer.wrap(Files.readAllBytes(file));
+        } catch (IOException e) {
+            PocketSettlement.LOGGER.error("[Pocket Settlement] Failed to read settlement journal {}", file, e);
+            return 0;
+        }
+        
+        if (in.remaining() < HEADER_BYTES || in.getInt() != MAGIC || in.getLong() != expectedGeneration) {
+            PocketSettlement.LOGGER.warn("[Pocket Settlement] Ignoring settlement journal {} with a bad header", file);
+            return 0;
+        }
+        
+        CRC32 check = new CRC32();
+        int records = 0;
+        while (in.remaining() >= 2) {
+            int length = in.getShort() & 0xFFFF;
+            if (length == 0 || in.remaining() < length + 4) {
+                PocketSettlement.LOGGER.warn("[Pocket Settlement] Settlement journal {} ends in a torn record, replayed {} records", file, records);
+                break;
+            }
+            
+            int bodyStart = in.position();
+            check.reset();
+            check.update(in.array(), bodyStart, length);
+            if ((int) check.getValue() != in.getInt(bodyStart + length)) {
+                PocketSettlement.LOGGER.warn("[Pocket Settlement] Settlement journal {} has a corrupt record, replayed {} records", file, records);
+                break;
+            }
+            
+            int opCode = in.get() & 0xFF;
+            if (opCode >= Op.VALUES.length) {
+                PocketSettlement.LOGGER.warn("[Pocket Settlement] Settlement journal {} has unknown op {}, replayed {} records", file, opCode, records);
+                break;
+            }
+            
+            ByteBuffer payload = in.slice(bodyStart + 1, length - 1);
+            replayer.replay(Op.VALUES[opCode], payload);
+            in.position(bodyStart + length + 4);
+            records++;
+        }
+        return records;
+    }
+    
+    // === Files ===
+    
+    private static String fileName(long generation) {
+        return FILE_PREFIX + generation + FILE_SUFFIX;
+    }
+    
+    /**
+     * @return generations of the journal files in the directory, oldest first
+     */
+    private static List<Long> listGenerations(Path directory) {
+        List<Long> generations = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return generations;
+        }
+        
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    generations.add(Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        } catch (IOException e) {
+            PocketSettlement.LOGGER.error("[Pocket Settlement] Failed to list settlement journals in {}", directory, e);
+        }
+        
+        generations.sort(null);
+        return generations;
+    }
+    
+    private static void deleteFile(long generation, Path directory) {
+        try {
+            Files.deleteIfExists(directory.resolve(fileName(generation)));
+        } catch (IOException e) {
+            PocketSettlement.LOGGER.warn("[Pocket Settlement] Failed to delete old settlement journal {}", fileName(generation), e);
+        }
+    }
+}
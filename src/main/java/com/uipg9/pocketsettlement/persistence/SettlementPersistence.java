@@ -0,0 +1,231 @@
+package com.uipg9.pocketsettlement.persistence;
+
+import com.uipg9.pocketsettlement.PocketSettlement;
+import com.uipg9.pocketsettlement.data.SettlementState;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtAccounter;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.level.storage.LevelResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persistence helpers for settlement data.
+ * 
+ * Each settlement is stored by its own {@link SettlementStore}: a snapshot
+ * entry in a shared {@link SettlementRegionFile} plus a mutation journal.
+ * Snapshots are streamed to NBT bytes on the server thread and compressed
+ * and written here, on a single background IO thread. This class also owns the open region files, the save
+ * metrics and the one-time migration of the old hand-written save file.
+ */
+public class SettlementPersistence {
+    
+    /** File written by versions before the SavedData integration. */
+    private static final String LEGACY_FILE_NAME = PocketSettlement.MOD_ID + "_settlement.dat";
+    private static final String MIGRATED_SUFFIX = ".migrated";
+    
+    /** Folder inside the world's data folder for files vanilla does not manage. */
+    private static final String DATA_FOLDER = PocketSettlement.MOD_ID;
+    private static final String REGION_FOLDER = "regions";
+    
+    /** Settlements are spread over this many region files by owner UUID. */
+    private static final int REGION_COUNT = 64;
+    
+    private static final PersistenceMetrics METRICS = new PersistenceMetrics();
+    private static final Map<Integer, SettlementRegionFile> regions = new HashMap<>();
+    
+    /**
+     * Snapshot bytes handed to the IO thread and not written yet.
+     */
+    private record PendingWrite(byte[] nbt, long generation) {}
+    
+    // Newest unwritten snapshot per owner, so a load right after an unload sees it
+    private static final Map<UUID, PendingWrite> pendingWrites = new ConcurrentHashMap<>();
+    
+    private static ExecutorService ioExecutor;
+    private static Path regionFolder;
+    
+    public static PersistenceMetrics metrics() {
+        return METRICS;
+    }
+    
+    public static Path getDataFolder(MinecraftServer server) {
+        return server.getWorldPath(LevelResource.ROOT).resolve("data").resolve(DATA_FOLDER);
+    }
+    
+    // === Lifecycle ===
+    
+    /**
+     * Start the IO thread. Called before any settlement is loaded.
+     */
+    public static void start(MinecraftServer server) {
+        if (ioExecutor != null) return;
+        
+        regionFolder = getDataFolder(server).resolve(REGION_FOLDER);
+        ioExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "PocketSettlement-IO");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    /**
+     * Wait for pending snapshot writes, then stop the IO thread and close the
+     * region files.
+     */
+    public static void stop() {
+        if (ioExecutor == null) return;
+        
+        ioExecutor.shutdown();
+        try {
+            if (!ioExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                PocketSettlement.LOGGER.warn("[Pocket Settlement] IO thread did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ioExecutor = null;
+        
+        synchronized (regions) {
+            for (SettlementRegionFile region : regions.values()) {
+                region.close();
+            }
+            regions.clear();
+        }
+    }
+    
+    // === Regions ===
+    
+    private static SettlementRegionFile getRegion(UUID owner) throws IOException {
+        int index = Math.floorMod(owner.hashCode(), REGION_COUNT);
+        synchronized (regions) {
+            SettlementRegionFile region = regions.get(index);
+            if (region == null) {
+                Files.createDirectories(regionFolder);
+                region = new SettlementRegionFile(regionFolder.resolve("r." + index + ".psr"));
+                regions.put(index, region);
+            }
+            return region;
+        }
+    }
+    
+    /**
+     * Read an owner's newest snapshot. One still waiting for the IO thread is
+     * decoded from memory; otherwise the region file is read right here,
+     * under its lock, so a joining player does not wait behind the write
+     * queue.
+     * 
+     * @return the snapshot, or null if the owner has none
+     * @throws IOException if the owner has a snapshot that cannot be read
+     */
+    public static SettlementRegionFile.Snapshot readSnapshot(UUID owner) throws IOException {
+        PendingWrite pending = pendingWrites.get(owner);
+        if (pending != null) {
+            CompoundTag nbt = NbtIo.read(new DataInputStream(new ByteArrayInputStream(pending.nbt())), NbtAccounter.unlimitedHeap());
+            return new SettlementRegionFile.Snapshot(pending.generation(), nbt);
+        }
+        if (regionFolder == null) {
+            throw new IOException("settlement persistence is not started");
+        }
+        return getRegion(owner).read(owner);
+    }
+    
+    /**
+     * @return the generations in an owner's two region slots, -1 for an empty slot
+     */
+    public static long[] getSnapshotGenerations(UUID owner) {
+        try {
+            return getRegion(owner).getGenerations(owner);
+        } catch (IOException e) {
+            return new long[] {-1, -1};
+        }
+    }
+    
+    public static int getOpenRegionCount() {
+        synchronized (regions) {
+            return regions.size();
+        }
+    }
+    
+    // === Snapshot Writes ===
+    
+    /**
+     * Compress an encoded settlement and write it to the older of its region
+     * slots on the IO thread.
+     * 
+     * @param nbt the uncompressed NBT bytes; must not be modified afterwards
+     * @return completes with whether the snapshot reached the disk
+     */
+    public static CompletableFuture<Boolean> writeSnapshot(UUID owner, byte[] nbt, long generation) {
+        if (ioExecutor == null) {
+            PocketSettlement.LOGGER.warn("[Pocket Settlement] Snapshot generation {} taken while the IO thread is stopped, not written", generation);
+            return CompletableFuture.completedFuture(false);
+        }
+        
+        PendingWrite pending = new PendingWrite(nbt, generation);
+        pendingWrites.put(owner, pending);
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                int bytes = getRegion(owner).write(owner, nbt, generation);
+                METRICS.recordWrite(System.nanoTime() - start, bytes);
+                return true;
+            } catch (IOException e) {
+                METRICS.recordFailedWrite();
+                PocketSettlement.LOGGER.error("[Pocket Settlement] Failed to write settlement snapshot {} of {}, the other slot is untouched", generation, owner, e);
+                return false;
+            } finally {
+                // Unless a newer snapshot was queued meanwhile
+                pendingWrites.remove(owner, pending);
+            }
+        }, ioExecutor);
+    }
+    
+    // === Legacy Migration ===
+    
+    /**
+     * Read the pre-SavedData save file, if there is one, and rename it so it is
+     * only migrated once. The renamed file is kept as a backup.
+     * 
+     * @return the migrated settlement, or null if there was nothing to migrate
+     */
+    public static SettlementState migrateLegacyFile(MinecraftServer server) {
+        Path dataDir = server.getWorldPath(LevelResource.ROOT).resolve("data");
+        Path legacyFile = dataDir.resolve(LEGACY_FILE_NAME);
+        if (!Files.exists(legacyFile)) {
+            return null;
+        }
+        
+        SettlementState state;
+        try {
+            CompoundTag nbt = NbtIo.readCompressed(legacyFile, NbtAccounter.unlimitedHeap());
+            state = SettlementState.load(nbt);
+        } catch (IOException e) {
+            PocketSettlement.LOGGER.error("[Pocket Settlement] Failed to read legacy settlement file {}, leaving it in place", legacyFile, e);
+            return null;
+        }
+        
+        try {
+            Files.move(legacyFile, dataDir.resolve(LEGACY_FILE_NAME + MIGRATED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            PocketSettlement.LOGGER.warn("[Pocket Settlement] Could not rename legacy settlement file {}", legacyFile, e);
+        }
+        
+        PocketSettlement.LOGGER.info("[Pocket Settlement] Migrated legacy settlement file");
+        return state;
+    }
+}
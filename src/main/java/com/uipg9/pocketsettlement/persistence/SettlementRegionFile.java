@@ -0,0 +1,355 @@
+package com.uipg9.pocketsettlement.persistence;
+
+import com.uipg9.pocketsettlement.PocketSettlement;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtAccounter;
+import net.minecraft.nbt.NbtIo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Container file holding the snapshots of many settlements, in the spirit of
+ * vanilla's region files.
+ * 
+ * The file is split into 4 KiB sectors. Sector 0 holds the magic and version,
+ * the next sectors hold a fixed index of {@link #ENTRY_COUNT} entries, and the
+ * rest holds gzip-compressed settlement NBT. Each entry has the owner UUID and
+ * two snapshot slots (generation, first sector, length, CRC32), so the A/B
+ * crash safety of {@link SnapshotSlots} carries over: a new snapshot is written
+ * to free sectors, synced, and only then is the older slot pointed at it.
+ * Rewriting one settlement only touches its own sectors and its index entry.
+ * 
+ * All access is positional FileChannel IO. The in-memory index is guarded by
+ * the file's monitor; writes compress and sync their payload outside it and
+ * only hold it to reserve sectors and update the index. Writes run on the IO
+ * thread; reads run on the server thread when a settlement loads.
+ */
+public class SettlementRegionFile {
+    
+    public static final int ENTRY_COUNT = 1024;
+    
+    private static final int MAGIC = 0x50535231;  // "PSR1"
+    private static final int FORMAT_VERSION = 1;
+    private static final int SECTOR_BYTES = 4096;
+    private static final int ENTRY_BYTES = 64;
+    private static final int INDEX_OFFSET = SECTOR_BYTES;
+    private static final int DATA_START_SECTOR = 1 + ENTRY_COUNT * ENTRY_BYTES / SECTOR_BYTES;
+    
+    // Entry layout: owner (16 bytes), then two slots of SLOT_BYTES
+    private static final int SLOT_OFFSET = 16;
+    private static final int SLOT_BYTES = 20;  // generation, first sector, length, crc
+    
+    private final Path path;
+    private final FileChannel channel;
+    
+    // In-memory copy of the index
+    private final long[] ownerMost = new long[ENTRY_COUNT];
+    private final long[] ownerLeast = new long[ENTRY_COUNT];
+    private final long[][] generations = new long[ENTRY_COUNT][2];
+    private final int[][] firstSectors = new int[ENTRY_COUNT][2];
+    private final int[][] lengths = new int[ENTRY_COUNT][2];
+    private final int[][] checksums = new int[ENTRY_COUNT][2];
+    private final Map<UUID, Integer> entries = new HashMap<>();
+    private final BitSet usedSectors = new BitSet();
+    
+    /**
+     * A snapshot read back from the region.
+     */
+    public record Snapshot(long generation, CompoundTag nbt) {}
+    
+    public SettlementRegionFile(Path path) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        usedSectors.set(0, DATA_START_SECTOR);
+        
+        if (channel.size() == 0) {
+            ByteBuffer header = ByteBuffer.allocate(DATA_START_SECTOR * SECTOR_BYTES);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION).rewind();
+            writeFully(header, 0);
+            channel.force(true);
+        } else {
+            readIndex();
+        }
+    }
+    
+    // === Index ===
+    
+    private void readIndex() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(DATA_START_SECTOR * SECTOR_BYTES);
+        readFully(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("not a settlement region file: " + path);
+        }
+        int version = header.getInt();
+        if (version > FORMAT_VERSION) {
+            throw new IOException("unknown region format version " + version + ": " + path);
+        }
+        
+        long fileSectors = (channel.size() + SECTOR_BYTES - 1) / SECTOR_BYTES;
+        for (int index = 0; index < ENTRY_COUNT; index++) {
+            int base = INDEX_OFFSET + index * ENTRY_BYTES;
+            ownerMost[index] = header.getLong(base);
+            ownerLeast[index] = header.getLong(base + 8);
+            if (isEmpty(index)) {
+                continue;
+            }
+            entries.put(new UUID(ownerMost[index], ownerLeast[index]), index);
+            
+            for (int slot = 0; slot < 2; slot++) {
+                int slotBase = base + SLOT_OFFSET + slot * SLOT_BYTES;
+                generations[index][slot] = header.getLong(slotBase);
+                firstSectors[index][slot] = header.getInt(slotBase + 8);
+                lengths[index][slot] = header.getInt(slotBase + 12);
+                checksums[index][slot] = header.getInt(slotBase + 16);
+                
+                int first = firstSectors[index][slot];
+                int count = sectorCount(lengths[index][slot]);
+                if (first < DATA_START_SECTOR || count <= 0 || first + count > fileSectors) {
+                    clearSlot(index, slot);
+                } else {
+                    usedSectors.set(first, first + count);
+                }
+            }
+        }
+    }
+    
+    private boolean isEmpty(int index) {
+        return ownerMost[index] == 0 && ownerLeast[index] == 0;
+    }
+    
+    private void clearSlot(int index, int slot) {
+        generations[index][slot] = -1;
+        firstSectors[index][slot] = 0;
+        lengths[index][slot] = 0;
+    }
+    
+    /**
+     * Find the index entry of an owner, probing linearly from its hash.
+     * 
+     * @return the entry index, or -1 if there is none and {@code create} is false
+     */
+    private int findEntry(UUID owner, boolean create) throws IOException {
+        Integer known = entries.get(owner);
+        if (known != null) {
+            return known;
+        }
+        if (!create) {
+            return -1;
+        }
+        
+        int start = Math.floorMod(owner.hashCode(), ENTRY_COUNT);
+        for (int probe = 0; probe < ENTRY_COUNT; probe++) {
+            int index = (start + probe) % ENTRY_COUNT;
+            if (isEmpty(index)) {
+                ownerMost[index] = owner.getMostSignificantBits();
+                ownerLeast[index] = owner.getLeastSignificantBits();
+                clearSlot(index, 0);
+                clearSlot(index, 1);
+                entries.put(owner, index);
+                return index;
+            }
+        }
+        throw new IOException("settlement region file is full: " + path);
+    }
+    
+    // === Reading ===
+    
+    /**
+     * Read the newest slot of an owner that passes its checks.
+     * 
+     * @return the snapshot, or null if the owner has no entry here
+     * @throws IOException if the owner has an entry but no slot is usable
+     */
+    public synchronized Snapshot read(UUID owner) throws IOException {
+        int index = findEntry(owner, false);
+        if (index < 0) {
+            return null;
+        }
+        
+        int newest = generations[index][0] >= generations[index][1] ? 0 : 1;
+        for (int slot : new int[] {newest, 1 - newest}) {
+            if (firstSectors[index][slot] == 0) {
+                continue;
+            }
+            try {
+                return new Snapshot(generations[index][slot], readSlot(index, slot));
+            } catch (IOException | RuntimeException e) {
+                PocketSettlement.LOGGER.error("[Pocket Settlement] Snapshot slot {} of {} in {} is unusable: {}", slot, owner, path, e.getMessage());
+                SettlementPersistence.metrics().recordCorruptSlot();
+                // Overwrite this slot first, but keep its sectors reserved until then
+                generations[index][slot] = -1;
+            }
+        }
+        throw new IOException("no usable snapshot slot for " + owner + " in " + path);
+    }
+    
+    private CompoundTag readSlot(int index, int slot) throws IOException {
+        int length = lengths[index][slot];
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(payload, (long) firstSectors[index][slot] * SECTOR_BYTES);
+        
+        CRC32 crc = new CRC32();
+        crc.update(payload.array(), 0, length);
+        if ((int) crc.getValue() != checksums[index][slot]) {
+            throw new IOException("checksum mismatch");
+        }
+        return NbtIo.readCompressed(new ByteArrayInputStream(payload.array(), 0, length), NbtAccounter.unlimitedHeap());
+    }
+    
+    // === Writing ===
+    
+    /**
+     * Compress a snapshot into free sectors and point the owner's older slot
+     * at it. The other slot's sectors are never touched.
+     * 
+     * @param nbt uncompressed NBT bytes; gzipped like {@code NbtIo.writeCompressed}
+     * @return the number of bytes written
+     */
+    public int write(UUID owner, byte[] nbt, long generation) throws IOException {
+        // Compress and sync outside the lock, so reads on the server thread never wait for them
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(nbt.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(nbt);
+        }
+        byte[] payload = bytes.toByteArray();
+        
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        
+        int count = sectorCount(payload.length);
+        int first;
+        synchronized (this) {
+            first = allocate(count);
+            usedSectors.set(first, first + count);
+        }
+        try {
+            writeFully(ByteBuffer.wrap(payload), (long) first * SECTOR_BYTES);
+            channel.force(false);
+        } catch (IOException e) {
+            synchronized (this) {
+                usedSectors.clear(first, first + count);
+            }
+            throw e;
+        }
+        
+        // Only now replace the slot, so a crash leaves either the old or the new snapshot
+        int oldFirst;
+        int oldCount;
+        synchronized (this) {
+            boolean newEntry = !entries.containsKey(owner);
+            int index = findEntry(owner, true);
+            int slot = generations[index][0] <= generations[index][1] ? 0 : 1;
+            oldFirst = firstSectors[index][slot];
+            oldCount = sectorCount(lengths[index][slot]);
+            generations[index][slot] = generation;
+            firstSectors[index][slot] = first;
+            lengths[index][slot] = payload.length;
+            checksums[index][slot] = (int) crc.getValue();
+            writeEntry(index, newEntry ? -1 : slot);
+        }
+        channel.force(false);
+        
+        // The old sectors are only reused once the index no longer points at them on disk
+        if (oldFirst != 0) {
+            synchronized (this) {
+                usedSectors.clear(oldFirst, oldFirst + oldCount);
+            }
+        }
+        return payload.length;
+    }
+    
+    /**
+     * Write one slot of an index entry, or the whole entry if {@code slot} is -1.
+     */
+    private void writeEntry(int index, int slot) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ENTRY_BYTES);
+        buffer.putLong(ownerMost[index]).putLong(ownerLeast[index]);
+        for (int s = 0; s < 2; s++) {
+            buffer.putLong(generations[index][s]).putInt(firstSectors[index][s]).putInt(lengths[index][s]).putInt(checksums[index][s]);
+        }
+        
+        long entryPosition = INDEX_OFFSET + (long) index * ENTRY_BYTES;
+        if (slot < 0) {
+            buffer.rewind();
+            writeFully(buffer, entryPosition);
+        } else {
+            int slotBase = SLOT_OFFSET + slot * SLOT_BYTES;
+            writeFully(buffer.slice(slotBase, SLOT_BYTES), entryPosition + slotBase);
+        }
+    }
+    
+    /**
+     * @return the first sector of a run of {@code count} free sectors
+     */
+    private int allocate(int count) {
+        int start = DATA_START_SECTOR;
+        while (true) {
+            int free = usedSectors.nextClearBit(start);
+            int next = usedSectors.nextSetBit(free);
+            if (next < 0 || next - free >= count) {
+                return free;
+            }
+            start = next;
+        }
+    }
+    
+    // === Generations ===
+    
+    /**
+     * @return the generations in the owner's two slots, -1 for an empty slot
+     */
+    public synchronized long[] getGenerations(UUID owner) {
+        Integer index = entries.get(owner);
+        if (index == null) {
+            return new long[] {-1, -1};
+        }
+        return new long[] {generations[index][0], generations[index][1]};
+    }
+    
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+    
+    // === IO ===
+    
+    private static int sectorCount(int length) {
+        return (length + SECTOR_BYTES - 1) / SECTOR_BYTES;
+    }
+    
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("unexpected end of " + path);
+            }
+            position += read;
+        }
+    }
+    
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+    
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            PocketSettlement.LOGGER.warn("[Pocket Settlement] Failed to close region file {}", path, e);
+        }
+    }
+}
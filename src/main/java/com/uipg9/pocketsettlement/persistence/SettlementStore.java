@@ -0,0 +1,195 @@
+package com.uipg9.pocketsettlement.persistence;
+
+import com.uipg9.pocketsettlement.PocketSettlement;
+import com.uipg9.pocketsettlement.SettlementConfig;
+import com.uipg9.pocketsettlement.data.SettlementState;
+import net.minecraft.nbt.CompoundTag;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * On-disk home of one settlement: its entry in a {@link SettlementRegionFile}
+ * and its {@link SettlementJournal}, which lives in the settlement's folder.
+ * 
+ * Settlements saved before region files have {@link SnapshotSlots} in their
+ * folder instead. Those are loaded once and retired after the first region
+ * write succeeds. The shared settlement from before per-player settlements
+ * has no owner; its store is only loaded and retired.
+ * 
+ * All methods run on the server thread; only region writes are handed
+ * to the IO thread.
+ */
+public class SettlementStore {
+    
+    private static final String MIGRATED_SUFFIX = ".migrated";
+    
+    private final UUID owner;
+    private final Path folder;
+    private final SnapshotSlots slots;
+    private SettlementJournal journal;
+    
+    /** Set while the snapshot still lives in the old slot files. */
+    private boolean slotsPending;
+    
+    /**
+     * Generations in this settlement's two region slots, -1 for an empty slot.
+     * Read from the region once on load, then replaced by the IO thread after
+     * each write, so snapshots never wait on the region's lock.
+     */
+    private volatile long[] generations = {-1, -1};
+    
+    /** Size of the previous snapshot, so the next one is streamed into a buffer that fits. */
+    private int lastSnapshotBytes = 4096;
+    
+    public SettlementStore(UUID owner, Path folder) {
+        this.owner = owner;
+        this.folder = folder;
+        this.slots = new SnapshotSlots(folder);
+    }
+    
+    // === Loading ===
+    
+    /**
+     * Load the newest valid snapshot and replay the journal records it does
+     * not contain yet. The journal stays attached to the returned settlement.
+     * 
+     * @return the settlement, or null if this store has no snapshot at all
+     * @throws IOException if there is a snapshot but it cannot be read
+     */
+    public SettlementState load() throws IOException {
+        CompoundTag nbt = null;
+        if (owner != null) {
+            SettlementRegionFile.Snapshot snapshot = SettlementPersistence.readSnapshot(owner);
+            if (snapshot != null) {
+                nbt = snapshot.nbt();
+                generations = SettlementPersistence.getSnapshotGenerations(owner);
+            }
+        }
+        if (nbt == null) {
+            SnapshotSlots.Snapshot snapshot = slots.readNewest();
+            if (snapshot == null) {
+                return null;
+            }
+            nbt = snapshot.nbt();
+            slotsPending = true;
+        }
+        
+        SettlementState state = SettlementState.load(nbt);
+        journal = SettlementJournal.openAndReplay(folder, state.getJournalGeneration(), state::replay);
+        state.attachJournal(journal);
+        return state;
+    }
+    
+    /**
+     * Start journaling a settlement that did not come from this store.
+     */
+    public void attachFresh(SettlementState state) {
+        journal = SettlementJournal.openFresh(folder);
+        state.attachJournal(journal);
+    }
+    
+    // === Saving ===
+    
+    /**
+     * Stream the settlement to uncompressed NBT bytes now, then compress and
+     * write them to the older region slot in the background. Rotates the journal, so only records after this point are
+     * replayed on top of the new snapshot.
+     * 
+     * @return completes with whether the snapshot reached the disk
+     */
+    public CompletableFuture<Boolean> snapshot(SettlementState state) {
+        long start = System.nanoTime();
+        long generation = journal.rotate(slotsPending ? slots.getOldestGeneration() : getOldestGeneration());
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(lastSnapshotBytes);
+        state.saveSnapshot(generation, new NbtStreamWriter(new DataOutputStream(bytes)));
+        byte[] nbt = bytes.toByteArray();
+        lastSnapshotBytes = nbt.length;
+        SettlementPersistence.metrics().recordSnapshot(System.nanoTime() - start);
+        
+        CompletableFuture<Boolean> write = SettlementPersistence.writeSnapshot(owner, nbt, generation);
+        boolean retireSlots = slotsPending;
+        slotsPending = false;
+        write.thenAccept(written -> {
+            // Runs on the IO thread, after the region holds the settlement
+            if (written) {
+                recordWritten(generation);
+                if (retireSlots) {
+                    slots.retire();
+                }
+            }
+        });
+        return write;
+    }
+    
+    /**
+     * @return the oldest generation a valid region slot still holds, so
+     *         journal records from that generation on are kept for either slot
+     */
+    private long getOldestGeneration() {
+        long[] generations = this.generations;
+        if (generations[0] < 0 || generations[1] < 0) {
+            return Math.max(0, Math.max(generations[0], generations[1]));
+        }
+        return Math.min(generations[0], generations[1]);
+    }
+    
+    /**
+     * @return the generations in this settlement's two region slots, -1 for an empty slot
+     */
+    public long[] getGenerations() {
+        return generations.clone();
+    }
+    
+    /**
+     * Mirror a finished region write, which replaced the older slot.
+     */
+    private void recordWritten(long generation) {
+        long[] previous = generations;
+        generations = previous[0] <= previous[1]
+            ? new long[] {generation, previous[1]}
+            : new long[] {previous[0], generation};
+    }
+    
+    /**
+     * Flush journal records. Called once per server tick.
+     * 
+     * @return true if the journal is due for compaction into a snapshot
+     */
+    public boolean tick() {
+        journal.tick();
+        return journal.needsSnapshot(SettlementConfig.journalCompactBytes, SettlementConfig.snapshotIntervalTicks);
+    }
+    
+    public void close() {
+        journal.close();
+    }
+    
+    /**
+     * Close this store and rename its files so they are never loaded again.
+     * The renamed files are kept as a backup.
+     */
+    public void retire() {
+        if (journal != null) {
+            journal.close();
+        }
+        
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "settlement.*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (Files.isRegularFile(file) && !name.endsWith(MIGRATED_SUFFIX)) {
+                    Files.move(file, file.resolveSibling(name + MIGRATED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } catch (IOException e) {
+            PocketSettlement.LOGGER.warn("[Pocket Settlement] Could not rename retired settlement files in {}", folder, e);
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.uipg9.pocketsettlement.persistence;
+
+import com.uipg9.pocketsettlement.PocketSettlement;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.nbt.NbtAccounter;
+import net.minecraft.nbt.NbtIo;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.zip.CRC32;
+
+/**
+ * Reader for the two alternating snapshot files ("slots") settlements were
+ * saved to before {@link SettlementRegionFile}. Read-only legacy migration
+ * code: nothing writes slots anymore. They are loaded once, and retired
+ * after the settlement's first region write succeeds.
+ * 
+ * Every slot starts with a header holding the snapshot generation and a CRC32
+ * of the payload, and the loader takes the newest slot that checks out.
+ * 
+ * Slot layout: magic, format version, generation, payload length, payload
+ * CRC32, then the gzip-compressed NBT payload.
+ */
+public class SnapshotSlots {
+    
+    private static final int MAGIC = 0x50535331;  // "PSS1"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+    private static final String[] SLOT_NAMES = {"settlement.a.dat", "settlement.b.dat"};
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    private static final String MIGRATED_SUFFIX = ".migrated";
+    
+    /** Generation held by each slot, or -1 if the slot is empty or invalid. */
+    private final AtomicLongArray slotGenerations = new AtomicLongArray(new long[] {-1, -1});
+    private final Path folder;
+    
+    public SnapshotSlots(Path folder) {
+        this.folder = folder;
+    }
+    
+    /**
+     * A snapshot read back from a slot.
+     */
+    public record Snapshot(long generation, CompoundTag nbt) {}
+    
+    // === Reading ===
+    
+    /**
+     * Read the newest valid slot. A slot that fails its checks is kept next
+     * to the slots with a .corrupt suffix for inspection.
+     * 
+     * @return the newest valid snapshot, or null if there are no slots
+     * @throws IOException if there are slots but neither is usable
+     */
+    public Snapshot readNewest() throws IOException {
+        Snapshot[] snapshots = new Snapshot[2];
+        for (int slot = 0; slot < 2; slot++) {
+            snapshots[slot] = readSlot(slot);
+            slotGenerations.set(slot, snapshots[slot] == null ? -1 : snapshots[slot].generation());
+        }
+        
+        if (snapshots[0] == null && snapshots[1] == null && hasSlotFiles()) {
+            throw new IOException("no usable snapshot slot in " + folder);
+        }
+        if (snapshots[0] == null) return snapshots[1];
+        if (snapshots[1] == null) return snapshots[0];
+        return snapshots[0].generation() >= snapshots[1].generation() ? snapshots[0] : snapshots[1];
+    }
+    
+    private boolean hasSlotFiles() {
+        return Files.exists(folder.resolve(SLOT_NAMES[0])) || Files.exists(folder.resolve(SLOT_NAMES[1]));
+    }
+    
+    private Snapshot readSlot(int slot) {
+        Path file = folder.resolve(SLOT_NAMES[slot]);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (in.remaining() < HEADER_BYTES || in.getInt() != MAGIC) {
+                throw new IOException("bad header");
+            }
+            int version = in.getInt();
+            if (version > FORMAT_VERSION) {
+                throw new IOException("unknown format version " + version);
+            }
+            long generation = in.getLong();
+            int length = in.getInt();
+            int checksum = in.getInt();
+            if (length != in.remaining()) {
+                throw new IOException("expected " + length + " payload bytes, found " + in.remaining());
+            }
+            
+            CRC32 crc = new CRC32();
+            crc.update(in.array(), HEADER_BYTES, length);
+            if ((int) crc.getValue() != checksum) {
+                throw new IOException("checksum mismatch");
+            }
+            
+            CompoundTag nbt = NbtIo.readCompressed(new ByteArrayInputStream(in.array(), HEADER_BYTES, length), NbtAccounter.unlimitedHeap());
+            return new Snapshot(generation, nbt);
+        } catch (IOException | RuntimeException e) {
+            PocketSettlement.LOGGER.error("[Pocket Settlement] Snapshot slot {} is unusable: {}", file, e.getMessage());
+            SettlementPersistence.metrics().recordCorruptSlot();
+            keepCorruptCopy(file);
+            return null;
+        }
+    }
+    
+    private void keepCorruptCopy(Path file) {
+        try {
+            Files.copy(file, file.resolveSibling(file.getFileName() + CORRUPT_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            PocketSettlement.LOGGER.warn("[Pocket Settlement] Could not back up corrupt snapshot slot {}", file, e);
+        }
+    }
+    
+    // === Generations ===
+    
+    /**
+     * @return the oldest generation a valid slot still holds, so journal
+     *         records from that generation on are kept for either slot
+     */
+    public long getOldestGeneration() {
+        long a = slotGenerations.get(0);
+        long b = slotGenerations.get(1);
+        if (a < 0 || b < 0) {
+            return Math.max(0, Math.max(a, b));
+        }
+        return Math.min(a, b);
+    }
+    
+    /**
+     * Rename both slots with a .migrated suffix once their snapshot lives
+     * somewhere else. The renamed files are kept as a backup.
+     */
+    public void retire() {
+        for (String name : SLOT_NAMES) {
+            Path file = folder.resolve(name);
+            try {
+                if (Files.exists(file)) {
+                    Files.move(file, folder.resolve(name + MIGRATED_SUFFIX), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                PocketSettlement.LOGGER.warn("[Pocket Settlement] Could not rename migrated snapshot slot {}", file, e);
+            }
+        }
+        slotGenerations.set(0, -1);
+        slotGenerations.set(1, -1);
+    }
+}
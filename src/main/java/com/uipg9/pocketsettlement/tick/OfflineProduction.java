@@ -0,0 +1,243 @@
+package com.uipg9.pocketsettlement.tick;
+
+import com.uipg9.pocketsettlement.SettlementConfig;
+import com.uipg9.pocketsettlement.data.*;
+import net.minecraft.world.item.Item;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Catches a settlement up on the production it missed while it was unloaded
+ * or the server was down, in one step when it loads.
+ * 
+ * For every producer the number of completed cycles follows from its progress
+ * per second, split where the worker levels up and speeds it up. The outputs
+ * of all those cycles are then drawn at once from the same
+ * {@link ProductionTable} the tick rolls every cycle, as a multinomial count
+ * of how often each outcome came up. The totals are added to the stockpile
+ * and the XP to the workers in bulk, so the cost does not depend on how long
+ * the settlement was away.
+ * 
+ * Daily contracts, income and happiness are not caught up.
+ */
+public class OfflineProduction {
+    
+    private static final Random random = new Random();
+    
+    /** Below this many trials a binomial is drawn trial by trial. */
+    private static final int EXACT_TRIALS = 64;
+    
+    /** Below this many expected successes the waiting-time method is exact and cheap. */
+    private static final double WAITING_TIME_MEAN = 20;
+    
+    /**
+     * Simulate the time since the settlement's clock last advanced, up to
+     * {@link SettlementConfig#offlineCatchUpSeconds}, and move the clock to
+     * {@code now}.
+     * 
+     * @return production cycles completed
+     */
+    public static long catchUp(SettlementState state, long now) {
+        long since = state.getSimulatedUntil();
+        long seconds = since > 0 ? Math.min((now - since) / 1000, SettlementConfig.offlineCatchUpSeconds) : 0;
+        
+        long totalCycles = 0;
+        if (seconds > 0) {
+            Map<Item, Long> output = new LinkedHashMap<>();
+            boolean producing = false;
+            for (int x = 0; x < SettlementState.GRID_SIZE; x++) {
+                for (int z = 0; z < SettlementState.GRID_SIZE; z++) {
+                    Building building = state.getBuilding(x, z);
+                    if (!building.getType().isProducer() || !building.hasWorker()) {
+                        continue;
+                    }
+                    producing = true;
+                    long cycles = runCycles(state, building, seconds);
+                    drawOutput(state, building, cycles, output);
+                    totalCycles += cycles;
+                }
+            }
+            
+            long produced = 0;
+            for (long amount : output.values()) {
+                produced += amount;
+            }
+            
+            // One add per item would fill the stockpile in map order; when
+            // it cannot take everything, share the free space out in
+            // proportion, as the tick's many small adds would
+            long room = state.getStockpile().getRemainingCapacity();
+            StockpileTransaction deposit = state.getStockpile().transaction();
+            for (Map.Entry<Item, Long> entry : output.entrySet()) {
+                long amount = produced <= room ? entry.getValue() : (long) ((double) entry.getValue() * room / produced);
+                amount = Math.min(amount, deposit.getRemainingCapacity());
+                deposit.insert(entry.getKey(), (int) amount);
+            }
+            deposit.commit();  // Fits by construction
+            
+            if (produced > 0) {
+                state.addItemsProduced((int) Math.min(produced, Integer.MAX_VALUE));
+            }
+            
+            if (producing) {
+                state.getProductionSchedule().invalidate();
+                state.markChanged(SettlementState.Section.CITIZENS);
+                state.setDirty(SettlementState.Section.GRID);
+            }
+        }
+        
+        state.advanceClock(now);
+        return totalCycles;
+    }
+    
+    // === Timing ===
+    
+    /**
+     * Advance one producer's progress by {@code seconds} and award its worker
+     * the XP of every completed cycle.
+     * 
+     * @return cycles completed
+     */
+    private static long runCycles(SettlementState state, Building building, long seconds) {
+        Citizen worker = state.getCitizen(building.getAssignedCitizenId());
+        long remaining = seconds;
+        long cycles = 0;
+        int progress = building.getProgress();
+        
+        // Each pass runs at one worker level, so there are at most five
+        while (true) {
+            int step = building.getProgressPerSecond(state);
+            long first = Math.max(1, (100 - progress + step - 1) / step);
+            if (remaining < first) {
+                progress += (int) (remaining * step);
+                break;
+            }
+            long period = Math.max(1, (100 + step - 1) / step);
+            long n = Math.min(1 + (remaining - first) / period, cyclesToLevelUp(worker));
+            
+            remaining -= first + (n - 1) * period;
+            cycles += n;
+            progress = 0;
+            if (worker != null) {
+                worker.addXp((int) Math.min(n * SettlementTickManager.XP_PER_CYCLE, Integer.MAX_VALUE));
+            }
+        }
+        
+        building.setProgress(progress);
+        return cycles;
+    }
+    
+    private static long cyclesToLevelUp(Citizen worker) {
+        if (worker == null || worker.getLevel() >= 5) {
+            return Long.MAX_VALUE;
+        }
+        long needed = (long) worker.getXpForNextLevel() - worker.getXp();
+        return Math.max(1, (needed + SettlementTickManager.XP_PER_CYCLE - 1) / SettlementTickManager.XP_PER_CYCLE);
+    }
+    
+    // === Output ===
+    
+    /**
+     * Draw the combined output of {@code cycles} cycles from the building's
+     * production table: the rolls of all cycles, then how many of them picked
+     * each outcome.
+     */
+    private static void drawOutput(SettlementState state, Building building, long cycles, Map<Item, Long> output) {
+        ProductionTable table = BuildingDefinitions.getProductionTable(building.getType(), building.getLevel(),
+            state.getTechTree().getUnlockedMask());
+        if (table == null || cycles <= 0) {
+            return;
+        }
+        
+        long rolls = uniformSum(cycles, table.getMinRolls(), table.getMaxRolls());
+        double[] weights = new double[table.getOutcomeCount()];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = table.getWeight(i);
+        }
+        long[] picks = multinomial(rolls, weights);
+        for (int i = 0; i < picks.length; i++) {
+            table.addOutcome(i, picks[i], output);
+        }
+    }
+    
+    // === Sampling ===
+    
+    private static double[] uniform(int outcomes) {
+        double[] chances = new double[outcomes];
+        Arrays.fill(chances, 1.0 / outcomes);
+        return chances;
+    }
+    
+    /**
+     * Sum of {@code count} uniform draws from {@code min..max}, as the count
+     * of each value times the value.
+     */
+    private static long uniformSum(long count, int min, int max) {
+        long[] values = multinomial(count, uniform(max - min + 1));
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            sum += values[i] * (min + i);
+        }
+        return sum;
+    }
+    
+    /**
+     * Split {@code trials} over outcomes with the given chances, one
+     * conditional binomial per outcome.
+     */
+    private static long[] multinomial(long trials, double[] chances) {
+        long[] counts = new long[chances.length];
+        double mass = 1.0;
+        long remaining = trials;
+        for (int i = 0; i < chances.length && remaining > 0; i++) {
+            if (i == chances.length - 1 || chances[i] >= mass) {
+                counts[i] = remaining;
+                break;
+            }
+            counts[i] = binomial(remaining, chances[i] / mass);
+            remaining -= counts[i];
+            mass -= chances[i];
+        }
+        return counts;
+    }
+    
+    /**
+     * Number of successes in {@code trials} trials of chance {@code p}. Exact
+     * for few trials or few expected successes (or failures); otherwise drawn
+     * from the normal approximation, which is close at that size.
+     */
+    private static long binomial(long trials, double p) {
+        if (trials <= 0 || p <= 0) return 0;
+        if (p >= 1) return trials;
+        
+        if (trials <= EXACT_TRIALS) {
+            long successes = 0;
+            for (long i = 0; i < trials; i++) {
+                if (random.nextDouble() < p) successes++;
+            }
+            return successes;
+        }
+        
+        double q = Math.min(p, 1 - p);
+        double mean = trials * q;
+        long rare;
+        if (mean < WAITING_TIME_MEAN) {
+            // Skip ahead geometric gaps between successes of the rarer outcome
+            double logMiss = Math.log1p(-q);
+            rare = 0;
+            long position = 0;
+            while (true) {
+                position += (long) (Math.log(1 - random.nextDouble()) / logMiss) + 1;
+                if (position > trials) break;
+                rare++;
+            }
+        } else {
+            double deviation = Math.sqrt(mean * (1 - q));
+            rare = Math.max(0, Math.min(trials, Math.round(mean + deviation * random.nextGaussian())));
+        }
+        return p <= 0.5 ? rare : trials - rare;
+    }
+}
@@ -1,189 +1,429 @@
 package com.uipg9.pocketsettlement.tick;
 
 import com.uipg9.pocketsettlement.PocketSettlement;
+import com.uipg9.pocketsettlement.SettlementConfig;
 import com.uipg9.pocketsettlement.data.*;
+import com.uipg9.pocketsettlement.persistence.CodecBenchmark;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.level.ServerLevel;
-import net.minecraft.world.item.Item;
-import net.minecraft.world.item.Items;
 
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Manages the settlement simulation tick.
- * Called every world tick, but only processes logic every 20 ticks (1 second).
+ * Called every world tick; every settlement is processed once per interval
+ * (normally 20 ticks, 1 second), in the tick slot its owner's UUID hashes
+ * to, so the work is spread over the interval instead of landing on one tick.
+ * 
+ * The interval adapts to the server: while the average tick time is above
+ * {@link SettlementConfig#sheddingMspt} it grows a second at a time, and
+ * below {@link SettlementConfig#recoveryMspt} it shrinks back. A step always
+ * simulates the whole seconds since the settlement's previous step, so
+ * production per real second stays the same at any interval.
+ * 
+ * Settlements do not share state, so the ones due in a tick are processed in
+ * parallel on a small fork-join pool, every settlement by exactly one worker.
+ * The server thread waits for them, then applies their outboxes (see
+ * {@link TickOutbox}) and flushes their journals. Worker threads must not
+ * touch players or the world.
+ * 
+ * Each tick stops starting new settlements once
+ * {@link SettlementConfig#tickBudgetMicros} is spent; the rest are deferred
+ * to the next tick and go first there.
+ * 
+ * Dispatching reuses one {@link Work} and outbox per settlement and the same
+ * lists every tick, so a tick allocates nothing unless a settlement loads or
+ * has side effects. The server thread's allocation per tick is averaged for
+ * /settlement stats tick.
  */
 public class SettlementTickManager {
     
-    private static int tickCounter = 0;
-    private static final int PROCESS_INTERVAL = 20;  // Process every 1 second
-    private static final Random random = new Random();
+    private static long tickCount = 0;
+    private static final int TICKS_PER_SECOND = 20;
+    
+    // Longest interval; the morning window for new contracts is 100 ticks
+    private static final int MAX_INTERVAL_SECONDS = 4;
+    private static final int ADAPT_TICKS = 100;  // Matches the server's tick time average
+    private static int intervalSeconds = 1;
+    private static double averageMspt;
+    
+    static final int XP_PER_CYCLE = 5;
+    
+    private static ForkJoinPool pool;
+    
+    // Settlements whose slot came but did not fit in the tick budget
+    private static int deferredCount;
+    private static long totalDeferrals;
+    private static long lastTickNanos;
+    
+    // Server thread allocation, summed over ADAPT_TICKS
+    private static long allocatedSum;
+    private static double averageTickAllocated = -1;
+    
+    /**
+     * A settlement and its step in the current tick. Kept per owner and
+     * reused, with its outbox, every tick the settlement stays loaded.
+     */
+    private static class Work {
+        final TickOutbox outbox;
+        SettlementState state;
+        int seconds;
+        long simulatedTick;
+        boolean deferred;
+        long seenTick;  // Last tick the settlement was loaded
+        
+        Work(UUID owner) {
+            this.outbox = new TickOutbox(owner);
+        }
+    }
+    
+    private static final Map<UUID, Work> works = new HashMap<>();  // Loaded settlements by owner
+    private static final List<Work> queued = new ArrayList<>();
+    private static final List<Work> due = new ArrayList<>();
+    
+    // The tick being collected, read by collect() so it captures nothing
+    private static long collectTick;
+    private static int collectSlot;
+    private static int collectIntervalTicks;
+    private static int collectNow;
+    
+    // === Lifecycle ===
+    
+    /**
+     * Start the tick workers, if {@link SettlementConfig#tickThreads} allows any.
+     */
+    public static void start() {
+        if (pool != null || SettlementConfig.tickThreads < 1) return;
+        
+        pool = new ForkJoinPool(SettlementConfig.tickThreads, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("PocketSettlement-Tick-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+    
+    public static void stop() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        works.clear();
+        queued.clear();
+        due.clear();
+        deferredCount = 0;
+        intervalSeconds = 1;
+    }
+    
+    // === Tick ===
     
     /**
      * Called every world tick.
      */
     public static void tick(ServerLevel level) {
-        tickCounter++;
+        long allocated = CodecBenchmark.allocatedBytes();
+        MinecraftServer server = level.getServer();
+        if (tickCount % ADAPT_TICKS == 0) {
+            adaptInterval(server);
+        }
+        int intervalTicks = intervalSeconds * TICKS_PER_SECOND;
+        collectTick = tickCount;
+        collectSlot = (int) (tickCount++ % intervalTicks);
+        collectIntervalTicks = intervalTicks;
+        collectNow = server.getTickCount();
+        long dayTime = level.getDayTime();
+        long start = System.nanoTime();
+        
+        // Only settlements in memory are simulated; idle ones are unloaded by the registry.
+        // Deferred settlements go before the ones whose slot this is.
+        queued.clear();
+        due.clear();
+        SettlementRegistry.get(server).forEachLoaded(SettlementTickManager::collect);
+        for (int i = 0; i < due.size(); i++) {
+            queued.add(due.get(i));
+        }
+        if (collectTick % ADAPT_TICKS == 0) {
+            forgetUnloaded();
+        }
+        deferredCount = 0;
+        if (queued.isEmpty()) {
+            lastTickNanos = 0;
+            recordAllocation(allocated);
+            return;
+        }
+        
+        // At least one round per tick, so deferred settlements always move
+        long budget = SettlementConfig.tickBudgetMicros * 1000L;
+        int round = pool == null ? 1 : pool.getParallelism();
+        int done = 0;
+        while (done < queued.size()) {
+            int end = Math.min(queued.size(), done + round);
+            process(queued, done, end, dayTime);
+            done = end;
+            if (System.nanoTime() - start >= budget) {
+                break;
+            }
+        }
+        for (int i = done; i < queued.size(); i++) {
+            queued.get(i).deferred = true;
+        }
+        deferredCount = queued.size() - done;
+        totalDeferrals += deferredCount;
+        
+        for (int i = 0; i < done; i++) {
+            Work item = queued.get(i);
+            item.state.setSimulatedTick(item.simulatedTick);
+            item.outbox.apply(server);
+        }
+        lastTickNanos = System.nanoTime() - start;
+        recordAllocation(allocated);
+    }
+    
+    /**
+     * Queue a loaded settlement if it was deferred or its slot has come.
+     */
+    private static void collect(UUID owner, SettlementState state) {
+        Work item = works.get(owner);
+        if (item == null) {
+            item = new Work(owner);
+            works.put(owner, item);
+        }
+        item.state = state;
+        item.seenTick = collectTick;
+        
+        if (item.deferred) {
+            item.deferred = false;
+            addWork(queued, item);
+        } else if (getSlot(owner, collectIntervalTicks) == collectSlot) {
+            addWork(due, item);
+        }
+    }
+    
+    /**
+     * Queue a step covering the whole seconds since the settlement's last
+     * step. A settlement that moved to an earlier slot when the interval
+     * changed may have nothing to simulate yet, and one that just loaded
+     * starts counting from its first slot.
+     */
+    private static void addWork(List<Work> list, Work item) {
+        long last = item.state.getSimulatedTick();
+        if (last < 0) {
+            // Just loaded, and OfflineProduction already caught up to now
+            item.state.setSimulatedTick(collectNow);
+            return;
+        }
+        int seconds = (int) ((collectNow - last) / TICKS_PER_SECOND);
+        if (seconds > 0) {
+            item.seconds = seconds;
+            item.simulatedTick = last + (long) seconds * TICKS_PER_SECOND;
+            list.add(item);
+        }
+    }
+    
+    /**
+     * Drop the work of settlements that were not loaded this tick.
+     */
+    private static void forgetUnloaded() {
+        Iterator<Work> it = works.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().seenTick != collectTick) {
+                it.remove();
+            }
+        }
+    }
+    
+    private static void recordAllocation(long before) {
+        if (before < 0) {
+            return;
+        }
+        allocatedSum += CodecBenchmark.allocatedBytes() - before;
+        if (tickCount % ADAPT_TICKS == 0) {
+            averageTickAllocated = (double) allocatedSum / ADAPT_TICKS;
+            allocatedSum = 0;
+        }
+    }
+    
+    /**
+     * @return the tick slot within the interval a settlement is processed in
+     */
+    static int getSlot(UUID owner, int intervalTicks) {
+        return Math.floorMod(owner.hashCode(), intervalTicks);
+    }
+    
+    /**
+     * Lengthen the interval while the server is slow, shorten it again once
+     * there is headroom.
+     */
+    private static void adaptInterval(MinecraftServer server) {
+        averageMspt = server.getAverageTickTimeNanos() / 1_000_000.0;
+        if (averageMspt > SettlementConfig.sheddingMspt && intervalSeconds < MAX_INTERVAL_SECONDS) {
+            intervalSeconds++;
+            PocketSettlement.LOGGER.info("[Pocket Settlement] Server at {} MSPT, simulating settlements every {} s", String.format("%.1f", averageMspt), intervalSeconds);
+        } else if (averageMspt < SettlementConfig.recoveryMspt && intervalSeconds > 1) {
+            intervalSeconds--;
+        }
+    }
+    
+    private static void process(List<Work> work, int from, int to, long dayTime) {
+        if (pool == null || to - from < 2) {
+            for (int i = from; i < to; i++) {
+                Work item = work.get(i);
+                processSettlement(item.state, item.seconds, dayTime, item.outbox);
+            }
+        } else {
+            // Rethrows a worker's exception here, as the serial loop would
+            pool.invoke(new Batch(work, from, to, dayTime));
+        }
+    }
+    
+    /**
+     * Splits the settlements in halves down to one settlement per task.
+     */
+    private static class Batch extends RecursiveAction {
+        private final List<Work> work;
+        private final int from;
+        private final int to;
+        private final long dayTime;
         
-        if (tickCounter >= PROCESS_INTERVAL) {
-            tickCounter = 0;
-            processSettlement(level);
+        Batch(List<Work> work, int from, int to, long dayTime) {
+            this.work = work;
+            this.from = from;
+            this.to = to;
+            this.dayTime = dayTime;
         }
+        
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                Work item = work.get(from);
+                processSettlement(item.state, item.seconds, dayTime, item.outbox);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Batch(work, from, middle, dayTime), new Batch(work, middle, to, dayTime));
+        }
+    }
+    
+    // === Stats ===
+    
+    /**
+     * @return settlements waiting for the next tick because of the budget
+     */
+    public static int getDeferredCount() {
+        return deferredCount;
+    }
+    
+    public static long getTotalDeferrals() {
+        return totalDeferrals;
+    }
+    
+    public static double getLastTickMillis() {
+        return lastTickNanos / 1_000_000.0;
     }
     
     /**
-     * Main settlement processing (runs once per second).
+     * @return bytes the server thread allocated per tick in the simulation,
+     *         averaged over the last {@value #ADAPT_TICKS} ticks, or -1 if
+     *         unknown; includes settlements processed on the server thread
      */
-    private static void processSettlement(ServerLevel level) {
-        SettlementState state = SettlementState.getOrCreate(level);
+    public static double getAverageTickAllocated() {
+        return averageTickAllocated;
+    }
+    
+    /**
+     * @return seconds between a settlement's steps, which is also the number
+     *         of seconds of progress one step simulates
+     */
+    public static int getIntervalSeconds() {
+        return intervalSeconds;
+    }
+    
+    /**
+     * @return the server's average tick time as of the last interval check
+     */
+    public static double getAverageMspt() {
+        return averageMspt;
+    }
+    
+    /**
+     * Main settlement processing, simulating {@code seconds} seconds (one,
+     * unless the server is shedding load). May run on a tick worker; effects
+     * for the server thread go to {@code outbox}.
+     * 
+     * Allocates nothing unless a day starts, so the tick adds no garbage per
+     * settlement. /settlement stats tick measures this (see {@link TickProbe}).
+     */
+    static void processSettlement(SettlementState state, int seconds, long worldTime, TickOutbox outbox) {
         
         // Process production buildings
-        processProduction(state, level);
+        processProduction(state, seconds);
         
         // Check for daily reset (new contracts)
-        checkDailyReset(state, level);
+        checkDailyReset(state, worldTime, outbox);
         
         // Process happiness changes
-        processHappiness(state);
+        processHappiness(state, seconds);
+        
+        // Offline catch-up starts from here when the settlement is unloaded
+        state.advanceClock(System.currentTimeMillis());
         
-        // Mark state as dirty to save
-        state.setDirty();
+        // Stockpile and coin changes are journaled; progress, XP and happiness
+        // are saved with the next snapshot
     }
     
     /**
-     * Process all production buildings (Greenhouse, Quarry, Lumber Yard, Mob Barn).
+     * Advance the production schedule and complete the producers
+     * (Greenhouse, Quarry, Lumber Yard, Mob Barn) that are due.
      */
-    private static void processProduction(SettlementState state, ServerLevel level) {
-        for (int x = 0; x < SettlementState.GRID_SIZE; x++) {
-            for (int z = 0; z < SettlementState.GRID_SIZE; z++) {
-                Building building = state.getBuilding(x, z);
-                
-                if (building == null || !building.getType().isProducer()) {
-                    continue;
-                }
-                
-                // Only produce if building has a worker
-                if (!building.hasWorker()) {
-                    continue;
-                }
-                
-                // Calculate progress to add based on efficiency
-                int efficiency = building.getEfficiency(state);
-                int baseTime = building.getType().getBaseProductionTime();
-                
-                // Progress per second = 100 / (baseTime / 20) * (efficiency / 100)
-                // Simplified: Progress = 2000 * efficiency / baseTime
-                float progressPerSecond = (2000f * efficiency) / (baseTime * 100f);
-                int progressToAdd = Math.max(1, (int) progressPerSecond);
-                
-                building.addProgress(progressToAdd);
-                
-                // Check if production is complete
-                if (building.isProductionReady()) {
-                    produceOutput(state, building);
-                    building.resetProgress();
-                    
-                    // Award XP to worker
-                    Citizen worker = state.getCitizen(building.getAssignedCitizenId());
-                    if (worker != null) {
-                        worker.addXp(5);  // 5 XP per production cycle
-                    }
-                }
+    private static void processProduction(SettlementState state, int seconds) {
+        ProductionSchedule schedule = state.getProductionSchedule();
+        schedule.advance(seconds, SettlementTickManager::completeCycle);
+        
+        // Progress is derived from the schedule's clock, so it moves every second
+        if (schedule.isProducing()) {
+            state.markChanged(SettlementState.Section.GRID);
+        }
+    }
+    
+    private static void completeCycle(SettlementState state, int plot) {
+        Building building = state.getBuilding(plot % SettlementState.GRID_SIZE, plot / SettlementState.GRID_SIZE);
+        produceOutput(state, building);
+        building.resetProgress();
+        
+        // Award XP to worker
+        Citizen worker = state.getCitizen(building.getAssignedCitizenId());
+        if (worker != null) {
+            if (worker.addXp(XP_PER_CYCLE)) {
+                state.getProductionSchedule().invalidate();  // A higher worker level speeds the building up
             }
+            state.markChanged(SettlementState.Section.CITIZENS);
         }
     }
     
     /**
-     * Produce output based on building type.
+     * Produce one cycle of output from the building's production table.
      */
     private static void produceOutput(SettlementState state, Building building) {
-        Stockpile stockpile = state.getStockpile();
-        int level = building.getLevel();
-        int baseAmount = level;  // Higher level = more output
-        
-        switch (building.getType()) {
-            case GREENHOUSE -> {
-                // Produce random crop
-                Item[] crops = {Items.WHEAT, Items.CARROT, Items.POTATO};
-                if (state.getTechTree().isUnlocked(TechTree.TechNode.FARMING_II)) {
-                    crops = new Item[]{Items.WHEAT, Items.CARROT, Items.POTATO, Items.BEETROOT, Items.MELON_SLICE};
-                }
-                if (state.getTechTree().isUnlocked(TechTree.TechNode.FARMING_III)) {
-                    crops = new Item[]{Items.WHEAT, Items.CARROT, Items.POTATO, Items.BEETROOT, Items.MELON_SLICE, Items.PUMPKIN};
-                }
-                Item crop = crops[random.nextInt(crops.length)];
-                int amount = baseAmount * (2 + random.nextInt(3));  // 2-4 per level
-                stockpile.addResource(crop, amount);
-                state.addItemsProduced(amount);
-            }
-            
-            case QUARRY -> {
-                // Produce based on level (deeper = rarer ores)
-                Item ore;
-                int amount;
-                float roll = random.nextFloat();
-                
-                if (level >= 5 && roll < 0.05f && state.getTechTree().isUnlocked(TechTree.TechNode.MINING_III)) {
-                    ore = Items.DIAMOND;
-                    amount = 1;
-                } else if (level >= 4 && roll < 0.15f && state.getTechTree().isUnlocked(TechTree.TechNode.MINING_II)) {
-                    ore = Items.RAW_GOLD;
-                    amount = 1 + random.nextInt(2);
-                } else if (level >= 3 && roll < 0.30f && state.getTechTree().isUnlocked(TechTree.TechNode.MINING_II)) {
-                    ore = Items.RAW_IRON;
-                    amount = 1 + random.nextInt(3);
-                } else if (level >= 2 && roll < 0.50f) {
-                    ore = Items.COAL;
-                    amount = 2 + random.nextInt(3);
-                } else {
-                    ore = Items.COBBLESTONE;
-                    amount = 3 + random.nextInt(5);
-                }
-                
-                stockpile.addResource(ore, amount * baseAmount);
-                state.addItemsProduced(amount * baseAmount);
-            }
-            
-            case LUMBER_YARD -> {
-                // Produce logs and occasionally planks
-                int logAmount = baseAmount * (3 + random.nextInt(3));
-                stockpile.addResource(Items.OAK_LOG, logAmount);
-                
-                // Chance for bonus planks
-                if (random.nextFloat() < 0.3f) {
-                    int plankAmount = logAmount / 2;
-                    stockpile.addResource(Items.OAK_PLANKS, plankAmount);
-                    state.addItemsProduced(plankAmount);
-                }
-                
-                state.addItemsProduced(logAmount);
-            }
-            
-            case MOB_BARN -> {
-                // Produce animal products
-                Item[] products = {Items.LEATHER, Items.BEEF, Items.PORKCHOP};
-                if (state.getTechTree().isUnlocked(TechTree.TechNode.RANCHING_II)) {
-                    products = new Item[]{Items.LEATHER, Items.BEEF, Items.PORKCHOP, Items.MUTTON, Items.WHITE_WOOL, Items.EGG, Items.FEATHER};
-                }
-                
-                // Produce 1-2 different products
-                int productCount = 1 + random.nextInt(2);
-                for (int i = 0; i < productCount; i++) {
-                    Item product = products[random.nextInt(products.length)];
-                    int amount = baseAmount * (1 + random.nextInt(3));
-                    stockpile.addResource(product, amount);
-                    state.addItemsProduced(amount);
-                }
-            }
-            
-            default -> {}
+        ProductionTable table = BuildingDefinitions.getProductionTable(building.getType(), building.getLevel(),
+            state.getTechTree().getUnlockedMask());
+        if (table != null) {
+            state.addItemsProduced(table.produce(ThreadLocalRandom.current(), state.getStockpile()));
         }
     }
     
     /**
      * Check if a new Minecraft day has started and refresh contracts.
      */
-    private static void checkDailyReset(SettlementState state, ServerLevel level) {
-        long currentTime = level.getDayTime();
+    private static void checkDailyReset(SettlementState state, long currentTime, TickOutbox outbox) {
         long dayTime = currentTime % 24000L;
         
         // Check if it's morning (time 0-100) and contracts haven't been refreshed today
@@ -196,6 +436,7 @@ public class SettlementTickManager {
                 state.generateNewContracts(currentTime);
                 state.incrementDaysPlayed();
                 state.generateDailyInfluence();
+                outbox.tellOwner("§6☀ A new day in your settlement! §7New contracts are posted.");
                 
                 // Daily Market income
                 int marketCount = state.getBuildingCount(BuildingType.MARKET);
@@ -203,6 +444,7 @@ public class SettlementTickManager {
                     int income = marketCount * 50;  // 50 coins per market per day
                     state.addCoins(income);
                     PocketSettlement.LOGGER.info("[Pocket Settlement] Market income: {} coins", income);
+                    outbox.tellOwner("§6+" + income + " coins §7from your markets");
                 }
                 
                 // Daily Bank interest
@@ -212,6 +454,7 @@ public class SettlementTickManager {
                         int interest = (int) (state.getCoins() * 0.10f * bankCount);  // 10% per bank
                         state.addCoins(interest);
                         PocketSettlement.LOGGER.info("[Pocket Settlement] Bank interest: {} coins", interest);
+                        outbox.tellOwner("§6+" + interest + " coins §7bank interest");
                     }
                 }
             }
@@ -221,40 +464,23 @@ public class SettlementTickManager {
     /**
      * Process happiness changes based on adjacency and conditions.
      */
-    private static void processHappiness(SettlementState state) {
-        // Calculate settlement-wide happiness modifiers
-        int happinessModifier = 0;
-        
-        // Check for positive/negative adjacencies
-        for (int x = 0; x < SettlementState.GRID_SIZE; x++) {
-            for (int z = 0; z < SettlementState.GRID_SIZE; z++) {
-                Building building = state.getBuilding(x, z);
-                
-                if (building.getType() == BuildingType.HOUSE) {
-                    // Check neighbors
-                    for (Building neighbor : state.getAdjacentBuildings(x, z)) {
-                        switch (neighbor.getType().getAdjacencyBonus()) {
-                            case NATURE -> happinessModifier += 2;      // Farms nearby = good
-                            case POLLUTION -> happinessModifier -= 3;   // Quarries nearby = bad
-                            case COMMERCE -> happinessModifier += 1;    // Markets nearby = good
-                            case SECURITY -> happinessModifier += 2;    // Guard towers = good
-                            default -> {}
-                        }
-                    }
-                }
-            }
-        }
+    private static void processHappiness(SettlementState state, int seconds) {
+        // Settlement-wide modifier from houses' neighbours, kept up to date by the grid
+        int happinessModifier = state.getHappinessModifier();
         
         // Apply happiness changes to all citizens (very slowly - 1 point per minute max)
-        if (random.nextInt(60) == 0) {  // Once per minute on average
-            for (Citizen citizen : state.getAllCitizens()) {
+        if (ThreadLocalRandom.current().nextInt(60) < seconds) {  // Once per minute on average
+            for (int i = 0; i < state.getCitizenCount(); i++) {
+                Citizen citizen = state.getCitizenAt(i);
                 int targetHappiness = 50 + happinessModifier;
                 int currentHappiness = citizen.getHappiness();
                 
                 if (currentHappiness < targetHappiness) {
                     citizen.adjustHappiness(1);
+                    state.markChanged(SettlementState.Section.CITIZENS);
                 } else if (currentHappiness > targetHappiness) {
                     citizen.adjustHappiness(-1);
+                    state.markChanged(SettlementState.Section.CITIZENS);
                 }
             }
         }
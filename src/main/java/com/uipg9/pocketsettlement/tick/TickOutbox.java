@@ -0,0 +1,53 @@
+package com.uipg9.pocketsettlement.tick;
+
+import net.minecraft.network.chat.Component;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.level.ServerPlayer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Side effects of one settlement's tick that have to happen on the server
+ * thread (chat, sounds, anything touching players or the world). Settlements
+ * may be ticked on worker threads; they post here instead, and the tick
+ * manager applies every outbox on the server thread once all settlements
+ * are done.
+ */
+public class TickOutbox {
+    
+    private final UUID owner;
+    private final List<Consumer<MinecraftServer>> effects = new ArrayList<>();
+    
+    TickOutbox(UUID owner) {
+        this.owner = owner;
+    }
+    
+    /**
+     * Run {@code effect} on the server thread at the end of this tick.
+     */
+    public void post(Consumer<MinecraftServer> effect) {
+        effects.add(effect);
+    }
+    
+    /**
+     * Send the settlement's owner a chat message, if they are online.
+     */
+    public void tellOwner(String message) {
+        post(server -> {
+            ServerPlayer player = server.getPlayerList().getPlayer(owner);
+            if (player != null) {
+                player.sendSystemMessage(Component.literal(message));
+            }
+        });
+    }
+    
+    void apply(MinecraftServer server) {
+        for (Consumer<MinecraftServer> effect : effects) {
+            effect.accept(server);
+        }
+        effects.clear();
+    }
+}
@@ -0,0 +1,47 @@
+package com.uipg9.pocketsettlement.tick;
+
+import com.uipg9.pocketsettlement.data.SettlementState;
+import com.uipg9.pocketsettlement.persistence.CodecBenchmark;
+import net.minecraft.nbt.CompoundTag;
+
+/**
+ * Measures one settlement tick on a copy of a live settlement: time and heap
+ * allocated per simulated second. The steady-state tick should allocate
+ * nothing, so anything above zero is garbage that crept back into the hot
+ * path. Runs on the server thread from /settlement stats tick.
+ */
+public class TickProbe {
+    
+    /** Midday, so no round runs the daily reset (which does allocate). */
+    private static final long MIDDAY = 6000L;
+    
+    /**
+     * Averages per tick. {@code allocatedBytes} is -1 if the JVM does not
+     * report thread allocations.
+     */
+    public record Result(double micros, double allocatedBytes, int rounds) {}
+    
+    /**
+     * Tick a copy of {@code state} {@code warmup} times, then measure
+     * {@code rounds} more.
+     */
+    public static Result run(SettlementState state, int warmup, int rounds) {
+        // The copy has no journal and is never saved
+        SettlementState copy = SettlementState.load(state.save(new CompoundTag()));
+        TickOutbox outbox = new TickOutbox(null);
+        
+        for (int i = 0; i < warmup; i++) {
+            SettlementTickManager.processSettlement(copy, 1, MIDDAY, outbox);
+        }
+        
+        long allocated = CodecBenchmark.allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            SettlementTickManager.processSettlement(copy, 1, MIDDAY, outbox);
+        }
+        long nanos = System.nanoTime() - start;
+        double perTick = allocated < 0 ? -1 : (double) (CodecBenchmark.allocatedBytes() - allocated) / rounds;
+        
+        return new Result(nanos / 1000.0 / rounds, perTick, rounds);
+    }
+}
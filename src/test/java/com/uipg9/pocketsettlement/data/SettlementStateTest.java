@@ -0,0 +1,98 @@
+package com.uipg9.pocketsettlement.data;
+
+import com.uipg9.pocketsettlement.persistence.SettlementJournal;
+import net.minecraft.SharedConstants;
+import net.minecraft.nbt.CompoundTag;
+import net.minecraft.server.Bootstrap;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The cached happiness modifier is updated incrementally by every plot
+ * change; it must always equal a full recount of the grid, including when
+ * the changes are replayed from the journal.
+ */
+class SettlementStateTest {
+    
+    private static final BuildingType[] TYPES = BuildingType.values();
+    private static final int SEEDS = 50;
+    private static final int STEPS = 500;
+    
+    @BeforeAll
+    static void bootstrap() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+    }
+    
+    @Test
+    void happinessModifierMatchesRecountAfterPlotChanges() {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Random random = new Random(seed);
+            SettlementState state = new SettlementState();
+            state.addCoins(1_000_000_000);
+            
+            for (int step = 0; step < STEPS; step++) {
+                int x = random.nextInt(SettlementState.GRID_SIZE);
+                int z = random.nextInt(SettlementState.GRID_SIZE);
+                BuildingType type = TYPES[random.nextInt(TYPES.length)];
+                String action = switch (random.nextInt(3)) {
+                    case 0 -> {
+                        state.constructBuilding(x, z, type);
+                        yield "construct " + type;
+                    }
+                    case 1 -> {
+                        state.demolishBuilding(x, z);
+                        yield "demolish";
+                    }
+                    default -> {
+                        state.setBuilding(x, z, new Building(type));
+                        yield "set " + type;
+                    }
+                };
+                assertEquals(state.computeHappinessModifier(), state.getHappinessModifier(),
+                    "seed " + seed + ", step " + step + ": " + action + " at " + x + "," + z);
+            }
+        }
+    }
+    
+    @Test
+    void happinessModifierMatchesRecountDuringReplay(@TempDir Path folder) {
+        for (int seed = 0; seed < SEEDS; seed++) {
+            Path journalFolder = folder.resolve("seed" + seed);
+            Random random = new Random(seed);
+            SettlementState state = new SettlementState();
+            state.addCoins(1_000_000_000);
+            CompoundTag snapshot = state.save(new CompoundTag());
+            
+            SettlementJournal journal = SettlementJournal.openFresh(journalFolder);
+            state.attachJournal(journal);
+            for (int step = 0; step < STEPS; step++) {
+                int x = random.nextInt(SettlementState.GRID_SIZE);
+                int z = random.nextInt(SettlementState.GRID_SIZE);
+                if (random.nextBoolean()) {
+                    state.constructBuilding(x, z, TYPES[random.nextInt(TYPES.length)]);
+                } else {
+                    state.demolishBuilding(x, z);
+                }
+            }
+            journal.close();
+            
+            SettlementState replayed = SettlementState.load(snapshot);
+            int currentSeed = seed;
+            SettlementJournal.openAndReplay(journalFolder, replayed.getJournalGeneration(), (op, payload) -> {
+                replayed.replay(op, payload);
+                assertEquals(replayed.computeHappinessModifier(), replayed.getHappinessModifier(),
+                    "seed " + currentSeed + ": replaying " + op);
+            }).close();
+            
+            assertEquals(state.getHappinessModifier(), replayed.getHappinessModifier(), "seed " + seed + ": replayed modifier");
+            assertEquals(state.computeHappinessModifier(), replayed.computeHappinessModifier(), "seed " + seed + ": replayed grid");
+        }
+    }
+}
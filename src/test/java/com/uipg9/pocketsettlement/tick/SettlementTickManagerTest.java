@@ -0,0 +1,79 @@
+package com.uipg9.pocketsettlement.tick;
+
+import com.uipg9.pocketsettlement.data.BuildingType;
+import com.uipg9.pocketsettlement.data.Citizen;
+import com.uipg9.pocketsettlement.data.SettlementState;
+import com.uipg9.pocketsettlement.persistence.CodecBenchmark;
+import net.minecraft.SharedConstants;
+import net.minecraft.server.Bootstrap;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The steady-state settlement tick must not allocate. This is the check
+ * /settlement stats tick runs in game (see {@link TickProbe}), on a settlement
+ * with every kind of producer staffed.
+ */
+class SettlementTickManagerTest {
+    
+    /** Midday, so no tick runs the daily reset (which does allocate). */
+    private static final long MIDDAY = 6000L;
+    private static final int WARMUP_TICKS = 20_000;
+    private static final int MEASURED_TICKS = 2_000;
+    
+    private static final BuildingType[] PRODUCERS = {
+        BuildingType.GREENHOUSE, BuildingType.QUARRY, BuildingType.LUMBER_YARD, BuildingType.MOB_BARN
+    };
+    
+    @BeforeAll
+    static void bootstrap() {
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+    }
+    
+    @Test
+    void steadyStateTickAllocatesNothing() {
+        assumeTrue(CodecBenchmark.allocatedBytes() >= 0, "JVM does not report thread allocations");
+        
+        SettlementState state = createSettlement();
+        TickOutbox outbox = new TickOutbox(null);
+        
+        // Fills the stockpile, levels workers and lets the JIT settle
+        for (int i = 0; i < WARMUP_TICKS; i++) {
+            SettlementTickManager.processSettlement(state, 1, MIDDAY, outbox);
+        }
+        
+        long before = CodecBenchmark.allocatedBytes();
+        for (int i = 0; i < MEASURED_TICKS; i++) {
+            SettlementTickManager.processSettlement(state, 1, MIDDAY, outbox);
+        }
+        long allocated = CodecBenchmark.allocatedBytes() - before;
+        
+        assertEquals(0, allocated, "bytes allocated over " + MEASURED_TICKS + " ticks");
+    }
+    
+    /**
+     * A settlement with one staffed building of each producer type and two
+     * houses next to them, so happiness and production both have work to do.
+     */
+    private static SettlementState createSettlement() {
+        SettlementState state = new SettlementState();
+        state.addCoins(1_000_000);
+        
+        for (int i = 0; i < PRODUCERS.length; i++) {
+            assertTrue(state.constructBuilding(i, 0, PRODUCERS[i]), "construct " + PRODUCERS[i]);
+            
+            Citizen citizen = state.recruitCitizen();
+            assertNotNull(citizen, "recruit");
+            assertTrue(state.assignCitizen(citizen.getId(), i, 0), "assign to " + PRODUCERS[i]);
+        }
+        assertTrue(state.constructBuilding(0, 1, BuildingType.HOUSE), "construct house");
+        assertTrue(state.constructBuilding(1, 1, BuildingType.HOUSE), "construct house");
+        return state;
+    }
+}